@@ -7,6 +7,8 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheOptions;
 import top.guoziyang.mydb.backend.server.Server;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -29,37 +31,99 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("pagecache", true, "-pagecache (file|mmap)");
+        options.addOption("extent", true, "-extent 4MB");
+        options.addOption("pagesize", true, "-pagesize 8KB");
+        options.addOption("compress", false, "-compress");
+        options.addOption("tier", true, "-tier 16MB");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
+        PageCacheOptions opts = parsePageCache(cmd.getOptionValue("pagecache"));
+        opts.extentSize = parseExtent(cmd.getOptionValue("extent"));
+        opts.pageSize = parsePageSize(cmd.getOptionValue("pagesize"));
+        opts.compress = cmd.hasOption("compress");
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            long mem = parseMem(cmd.getOptionValue("mem"));
+            opts.tierSize = parseTier(cmd.getOptionValue("tier"), mem);
+            openDB(cmd.getOptionValue("open"), mem, opts);
             return;
         }
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), opts);
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
     }
 
-    private static void createDB(String path) {
+    private static void createDB(String path, PageCacheOptions opts) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm, opts);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, PageCacheOptions opts) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, opts);
+        if(dm.getCompressionRatio() > 0) {
+            System.out.println(String.format("Compression ratio: %.2f", dm.getCompressionRatio()));
+        }
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port, tbm).start();
     }
 
+    private static PageCacheOptions parsePageCache(String mode) {
+        PageCacheOptions opts = new PageCacheOptions();
+        if(mode == null || "".equals(mode)) {
+            return opts;
+        }
+        if(!PageCacheOptions.MODE_FILE.equals(mode) && !PageCacheOptions.MODE_MMAP.equals(mode)) {
+            Panic.panic(Error.InvalidPageCacheModeException);
+        }
+        opts.mode = mode;
+        return opts;
+    }
+
+    // 预扩展大小限制在1MB到64MB之间
+    private static long parseExtent(String extentStr) {
+        if(extentStr == null || "".equals(extentStr)) {
+            return PageCacheOptions.DEFAULT_EXTENT_SIZE;
+        }
+        long extent = parseMem(extentStr);
+        if(extent < MB || extent > 64*MB) {
+            Panic.panic(Error.InvalidExtentException);
+        }
+        return extent;
+    }
+
+    // 页大小只在create时生效，须是4KB到64KB之间的2的幂
+    private static int parsePageSize(String pageSizeStr) {
+        if(pageSizeStr == null || "".equals(pageSizeStr)) {
+            return PageCache.PAGE_SIZE;
+        }
+        long pageSize = parseMem(pageSizeStr);
+        if(pageSize < PageCache.MIN_PAGE_SIZE || pageSize > PageCache.MAX_PAGE_SIZE || Long.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return (int)pageSize;
+    }
+
+    // 压缩层从-mem中划出，不能超过其一半
+    private static long parseTier(String tierStr, long mem) {
+        if(tierStr == null || "".equals(tierStr)) {
+            return 0;
+        }
+        long tier = parseMem(tierStr);
+        if(tier > mem / 2) {
+            Panic.panic(Error.InvalidMemException);
+        }
+        return tier;
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
@@ -1,7 +1,8 @@
 package top.guoziyang.mydb.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -9,98 +10,479 @@ import top.guoziyang.mydb.common.Error;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ *
+ * maxResource > 0 时为有界缓存：引用计数归零的资源不会立即驱逐，
+ * 而是留在缓存中，直到缓存满时挑选引用计数为0的资源驱逐
+ * maxResource == 0 时为无界缓存：引用计数归零立即驱逐
+ *
+ * 有界缓存的驱逐采用2Q策略，抵抗全表扫描这类只访问一次的流量：
+ * 新加载的资源先进入试用队列(A1in)，按FIFO驱逐，在其中的再次访问不算数；
+ * 从试用队列驱逐的key留在幽灵队列(A1out)中，只记key不占资源，
+ * 幽灵队列中的key再次被加载时才进入保护区(Am)，保护区用CLOCK驱逐
+ * 试用队列超过容量的四分之一时优先从试用队列驱逐，一次扫描最多冲掉试用队列，不会冲掉保护区
+ *
+ * 缓存按key的哈希分成若干分片，每个分片有自己的锁、以long为key的哈希表、两个队列和幽灵队列，
+ * 不同分片上的访问互不阻塞；容量由所有分片共享
+ *
+ * 驱逐时在分片锁内把资源移出队列并标记为驱逐中，写回在锁外进行，不阻塞同一分片上的其他访问；
+ * 驱逐中的资源仍留在哈希表里，同一key的get等写回完成后再重新加载
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    private static final int MAX_SHARDS = 64;
+    private static final int MIN_GHOSTS = 16;
+
+    private Shard<T>[] shards;
+    private int shardShift;
 
     private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    private AtomicInteger count;                        // 缓存中元素的个数，包括正在加载的
+    private AtomicInteger victimShard;                  // 下一次驱逐从哪个分片开始
+    private AtomicInteger probationCount;               // 所有分片试用队列中的元素个数
+    private int probationTarget;                        // 试用队列的目标大小
+
+    /**
+     * 缓存项，合并了资源本身、引用计数、加载状态和CLOCK访问位
+     */
+    private static class CacheEntry<T> {
+        long key;
+        T obj;
+        int refs;
+        boolean accessed;
+        boolean hot;                                    // 在保护区还是试用队列
+        CompletableFuture<T> loading;                   // 不为null说明正在加载
+        CompletableFuture<Void> evicting;               // 不为null说明正在写回，完成后移出哈希表
+        int waiters;                                    // 等待加载结果的线程数
+        CacheEntry<T> prev, next;                       // 所在队列的环
+
+        CacheEntry(long key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 双向环，hand指向最早加入的元素
+     * 试用队列从hand开始按FIFO驱逐，保护区的hand即CLOCK指针
+     */
+    private static class Ring<T> {
+        CacheEntry<T> hand;
+        int size;
+
+        void add(CacheEntry<T> e) {
+            if(hand == null) {
+                e.prev = e.next = e;
+                hand = e;
+            } else {
+                // 插在指针之前，即最后才被扫到
+                e.next = hand;
+                e.prev = hand.prev;
+                hand.prev.next = e;
+                hand.prev = e;
+            }
+            size ++;
+        }
+
+        void remove(CacheEntry<T> e) {
+            if(e.next == e) {
+                hand = null;
+            } else {
+                e.prev.next = e.next;
+                e.next.prev = e.prev;
+                if(hand == e) {
+                    hand = e.next;
+                }
+            }
+            e.prev = e.next = null;
+            size --;
+        }
+    }
+
+    private static class Shard<T> {
+        Lock lock = new ReentrantLock();
+        LongHashMap<CacheEntry<T>> table = new LongHashMap<>();
+        Ring<T> probation = new Ring<>();               // A1in
+        Ring<T> protect = new Ring<>();                 // Am
+        // A1out，ghostRing按FIFO记录被逐出试用队列的key，ghosts记录key最近一次入队的序号
+        LongHashMap<Long> ghosts = new LongHashMap<>();
+        long[] ghostRing;
+        long ghostSeq;                                  // 下一个入队的序号
+
+        Shard(int ghostLimit) {
+            ghostRing = new long[ghostLimit];
+        }
+
+        void addGhost(long key) {
+            int n = ghostRing.length;
+            if(ghostSeq >= n) {
+                // 队满，挤掉最早的key；如果它后来又入队过，序号对不上，不删除
+                long old = ghostRing[(int)(ghostSeq % n)];
+                Long seq = ghosts.get(old);
+                if(seq != null && seq == ghostSeq - n) {
+                    ghosts.remove(old);
+                }
+            }
+            ghostRing[(int)(ghostSeq % n)] = key;
+            ghosts.put(key, ghostSeq);
+            ghostSeq ++;
+        }
+
+        // key在幽灵队列中则移出并返回true
+        boolean takeGhost(long key) {
+            return ghosts.remove(key) != null;
+        }
+    }
 
+    @SuppressWarnings("unchecked")
     public AbstractCache(int maxResource) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.count = new AtomicInteger(0);
+        this.victimShard = new AtomicInteger(0);
+        this.probationCount = new AtomicInteger(0);
+        this.probationTarget = Math.max(1, maxResource / 4);
+        int n = 1;
+        while(n < Runtime.getRuntime().availableProcessors() * 2 && n < MAX_SHARDS) {
+            n <<= 1;
+        }
+        // 幽灵队列总共记住容量一半的key，平分到各分片，小缓存时每个分片至少记住若干个
+        int ghostLimit = Math.max(MIN_GHOSTS, maxResource / 2 / n);
+        shards = (Shard<T>[])new Shard<?>[n];
+        for(int i = 0; i < n; i ++) {
+            shards[i] = new Shard<>(ghostLimit);
+        }
+        shardShift = 32 - Integer.numberOfTrailingZeros(n);
+    }
+
+    private Shard<T> shardOf(long key) {
+        // 用哈希的高位选分片，低位留给分片内的哈希表
+        return shardShift == 32 ? shards[0] : shards[LongHashMap.hash(key) >>> shardShift];
     }
 
     protected T get(long key) throws Exception {
+        Shard<T> shard = shardOf(key);
+        shard.lock.lock();
+        CacheEntry<T> e = shard.table.get(key);
+        while(e != null && e.evicting != null) {
+            // 正在驱逐，等写回完成，之后的加载读到的是写回后的数据
+            CompletableFuture<Void> evicting = e.evicting;
+            shard.lock.unlock();
+            evicting.join();
+            shard.lock.lock();
+            e = shard.table.get(key);
+        }
+        if(e != null) {
+            if(e.loading != null) {
+                // 请求的资源正在被其他线程获取，等待其加载完成
+                e.waiters ++;
+                CompletableFuture<T> loading = e.loading;
+                shard.lock.unlock();
+                return await(loading);
+            }
+            // 资源在缓存中，直接返回
+            e.refs ++;
+            e.accessed = true;
+            shard.lock.unlock();
+            return e.obj;
+        }
+        // 先登记加载中的缓存项，之后同一key的缺失都会等待它
+        e = new CacheEntry<>(key);
+        e.loading = new CompletableFuture<>();
+        shard.table.put(key, e);
+        shard.lock.unlock();
+
+        T obj = null;
+        try {
+            // 尝试获取该资源，缓存满时先驱逐一个未被引用的资源
+            if(!reserve()) {
+                throw Error.CacheFullException;
+            }
+            try {
+                obj = getForCache(key);
+            } catch(Exception err) {
+                count.decrementAndGet();
+                throw err;
+            }
+        } catch(Exception err) {
+            shard.lock.lock();
+            shard.table.remove(key);
+            shard.lock.unlock();
+            e.loading.completeExceptionally(err);
+            throw err;
+        }
+
+        shard.lock.lock();
+        CompletableFuture<T> loading = e.loading;
+        e.obj = obj;
+        e.loading = null;
+        // 等待者的引用在此一并计入
+        e.refs = 1 + e.waiters;
+        e.waiters = 0;
+        if(maxResource > 0) {
+            e.accessed = true;
+            admit(shard, e);
+        }
+        shard.lock.unlock();
+        loading.complete(obj);
+
+        return obj;
+    }
+
+    /**
+     * 资源已在缓存中时增加一次引用并返回，不在缓存或正在加载时返回null，不会触发加载
+     */
+    protected T getIfPresent(long key) {
+        Shard<T> shard = shardOf(key);
+        shard.lock.lock();
+        try {
+            CacheEntry<T> e = shard.table.get(key);
+            if(e == null || e.loading != null || e.evicting != null) {
+                return null;
+            }
+            e.refs ++;
+            return e.obj;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * 资源当前的引用数，不在缓存或正在加载时返回0
+     */
+    protected int refCount(long key) {
+        Shard<T> shard = shardOf(key);
+        shard.lock.lock();
+        try {
+            CacheEntry<T> e = shard.table.get(key);
+            if(e == null || e.loading != null || e.evicting != null) {
+                return 0;
+            }
+            return e.refs;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * 资源是否已被选为驱逐对象、还没写回完
+     */
+    protected boolean isEvicting(long key) {
+        Shard<T> shard = shardOf(key);
+        shard.lock.lock();
+        try {
+            CacheEntry<T> e = shard.table.get(key);
+            return e != null && e.evicting != null;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * 预读：资源不在缓存时加载进来但不增加引用，只用于有界缓存
+     * 先占用容量再登记，缓存已满且无可驱逐时直接放弃，不影响其他线程的get
+     * 预读到的资源访问位为0，没有被用到时会先被驱逐
+     */
+    protected void preload(long key) throws Exception {
+        if(maxResource <= 0) {
+            return;
+        }
+        Shard<T> shard = shardOf(key);
+        shard.lock.lock();
+        boolean present = shard.table.get(key) != null;
+        shard.lock.unlock();
+        if(present || !reserve()) {
+            return;
+        }
+        shard.lock.lock();
+        if(shard.table.get(key) != null) {
+            shard.lock.unlock();
+            count.decrementAndGet();
+            return;
+        }
+        CacheEntry<T> e = new CacheEntry<>(key);
+        e.loading = new CompletableFuture<>();
+        shard.table.put(key, e);
+        shard.lock.unlock();
+
+        T obj;
+        try {
+            obj = getForCache(key);
+        } catch(Exception err) {
+            count.decrementAndGet();
+            shard.lock.lock();
+            shard.table.remove(key);
+            shard.lock.unlock();
+            e.loading.completeExceptionally(err);
+            throw err;
+        }
+
+        shard.lock.lock();
+        CompletableFuture<T> loading = e.loading;
+        e.obj = obj;
+        e.loading = null;
+        // 加载期间到来的get已经在等待，它们的引用计入，并算作一次访问
+        e.refs = e.waiters;
+        e.accessed = e.waiters > 0;
+        e.waiters = 0;
+        admit(shard, e);
+        shard.lock.unlock();
+        loading.complete(obj);
+    }
+
+    // 新加载的资源入队，最近刚被逐出试用队列的进入保护区，其余进入试用队列，需持有分片锁
+    private void admit(Shard<T> shard, CacheEntry<T> e) {
+        if(shard.takeGhost(e.key)) {
+            e.hot = true;
+            shard.protect.add(e);
+        } else {
+            e.hot = false;
+            shard.probation.add(e);
+            probationCount.incrementAndGet();
+        }
+    }
+
+    // 等待其他线程的加载结果，加载失败时抛出同一个异常
+    private T await(CompletableFuture<T> loading) throws Exception {
+        try {
+            return loading.join();
+        } catch(CompletionException e) {
+            throw (Exception)e.getCause();
+        }
+    }
+
+    // 为一个新资源占用容量，缓存已满时驱逐，无可驱逐则返回false
+    private boolean reserve() {
+        if(maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
         while(true) {
-            lock.lock();
-            if(getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
+            int c = count.get();
+            if(c < maxResource) {
+                if(count.compareAndSet(c, c + 1)) {
+                    return true;
                 }
                 continue;
             }
+            if(!evictOne()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 从各分片轮流尝试驱逐一个资源，同一时刻只持有一个分片的锁
+     * 第一轮只驱逐该优先驱逐的队列：试用队列超过目标大小时为试用队列，否则为保护区；
+     * 各分片都没有可驱逐的，第二轮再不分队列
+     * 选中的资源在锁外写回
+     */
+    private boolean evictOne() {
+        int start = victimShard.getAndIncrement();
+        boolean probationFirst = probationCount.get() > probationTarget;
+        for(int round = 0; round < 2; round ++) {
+            for(int i = 0; i < shards.length; i ++) {
+                Shard<T> shard = shards[(start + i) & (shards.length - 1)];
+                CacheEntry<T> victim;
+                shard.lock.lock();
+                try {
+                    if(round == 0) {
+                        victim = probationFirst ? evictProbation(shard) : evictProtected(shard);
+                    } else {
+                        victim = evictProbation(shard);
+                        if(victim == null) {
+                            victim = evictProtected(shard);
+                        }
+                    }
+                } finally {
+                    shard.lock.unlock();
+                }
+                if(victim != null) {
+                    writeBack(shard, victim);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-            if(cache.containsKey(key)) {
-                // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+    // 以下选择驱逐对象时需持有分片锁，选中的资源移出队列并标记为驱逐中，由调用方在锁外写回
+
+    // 从试用队列最早的资源开始，驱逐第一个未被引用的，其key进入幽灵队列
+    private CacheEntry<T> evictProbation(Shard<T> shard) {
+        Ring<T> ring = shard.probation;
+        CacheEntry<T> e = ring.hand;
+        for(int i = 0; i < ring.size; i ++, e = e.next) {
+            if(e.refs > 0) {
+                continue;
             }
+            ring.remove(e);
+            probationCount.decrementAndGet();
+            shard.addGhost(e.key);
+            e.evicting = new CompletableFuture<>();
+            return e;
+        }
+        return null;
+    }
 
-            // 尝试获取该资源
-            if(maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
+    /**
+     * 保护区的CLOCK驱逐
+     * 指针扫过的资源若仍被引用则跳过，若访问位为1则清零给第二次机会，否则驱逐
+     * 两圈内找不到引用计数为0的资源说明全部被占用，返回null
+     */
+    private CacheEntry<T> evictProtected(Shard<T> shard) {
+        Ring<T> ring = shard.protect;
+        int scans = ring.size * 2;
+        for(int i = 0; i < scans; i ++) {
+            CacheEntry<T> e = ring.hand;
+            ring.hand = e.next;
+            if(e.refs > 0) {
+                continue;
+            }
+            if(e.accessed) {
+                e.accessed = false;
+                continue;
             }
-            count ++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
+            ring.remove(e);
+            e.evicting = new CompletableFuture<>();
+            return e;
         }
+        return null;
+    }
 
-        T obj = null;
+    // 在分片锁外写回驱逐中的资源，完成后才移出哈希表、归还容量，并唤醒等待该key的线程
+    private void writeBack(Shard<T> shard, CacheEntry<T> e) {
         try {
-            obj = getForCache(key);
-        } catch(Exception e) {
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
-            throw e;
-        }
-
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
-        
-        return obj;
+            releaseForCache(e.obj);
+        } finally {
+            shard.lock.lock();
+            if(shard.table.get(e.key) == e) {
+                shard.table.remove(e.key);
+            }
+            shard.lock.unlock();
+            count.decrementAndGet();
+            e.evicting.complete(null);
+        }
     }
 
     /**
-     * 强行释放一个缓存
+     * 释放一个缓存的引用
+     * 有界缓存中引用归零的资源留待CLOCK驱逐，无界缓存则立即驱逐
      */
     protected void release(long key) {
-        lock.lock();
+        Shard<T> shard = shardOf(key);
+        CacheEntry<T> victim = null;
+        shard.lock.lock();
         try {
-            int ref = references.get(key)-1;
-            if(ref == 0) {
-                T obj = cache.get(key);
+            CacheEntry<T> e = shard.table.get(key);
+            e.refs --;
+            if(e.refs == 0 && maxResource == 0) {
                 //如果页面被改动且为保存则为脏
-                //下一步会将脏页面保存 
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count --;
-            } else {
-                references.put(key, ref);
+                //下一步会将脏页面保存
+                e.evicting = new CompletableFuture<>();
+                victim = e;
             }
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
+        }
+        if(victim != null) {
+            writeBack(shard, victim);
         }
     }
 
@@ -108,18 +490,34 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for(Shard<T> shard : shards) {
+            shard.lock.lock();
+            try {
+                for(CacheEntry<T> e : shard.table.values()) {
+                    if(e.loading != null) continue;
+                    if(e.evicting != null) {
+                        // 等进行中的驱逐写回完成，它会自己归还容量
+                        CompletableFuture<Void> evicting = e.evicting;
+                        shard.lock.unlock();
+                        try {
+                            evicting.join();
+                        } finally {
+                            shard.lock.lock();
+                        }
+                        continue;
+                    }
+                    releaseForCache(e.obj);
+                    count.decrementAndGet();
+                }
+                shard.table.clear();
+                shard.probation = new Ring<>();
+                shard.protect = new Ring<>();
+                shard.ghosts.clear();
+            } finally {
+                shard.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
+        probationCount.set(0);
     }
 
 
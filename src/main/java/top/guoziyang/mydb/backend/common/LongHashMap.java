@@ -0,0 +1,148 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 以long为key的开放寻址哈希表，避免HashMap<Long, V>的装箱和节点对象
+ * 线性探测，删除时做反向移位而不是留墓碑，value为null的槽位即空槽
+ * 非线程安全，由调用方加锁
+ */
+public class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while(capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    public static int hash(long key) {
+        // murmur3 的 fmix64，页号、uid这类连续的key也能打散
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                return (V)values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size ++;
+        // 负载因子保持在0.5以下，探测链较短
+        if(size * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                V old = (V)values[i];
+                shiftBack(i);
+                size --;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    // 删除槽位gap后，把后续探测链上本应更靠前的元素前移填补
+    private void shiftBack(int gap) {
+        int i = gap;
+        while(true) {
+            i = (i + 1) & mask;
+            if(values[i] == null) {
+                break;
+            }
+            int home = hash(keys[i]) & mask;
+            // home 不在 (gap, i] 区间内时，该元素可以移到gap
+            if(((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for(int j = 0; j < oldKeys.length; j ++) {
+            if(oldValues[j] == null) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while(values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> res = new ArrayList<>(size);
+        for(Object v : values) {
+            if(v != null) {
+                res.add((V)v);
+            }
+        }
+        return res;
+    }
+
+    public void clear() {
+        for(int i = 0; i < values.length; i ++) {
+            values[i] = null;
+        }
+        size = 0;
+    }
+}
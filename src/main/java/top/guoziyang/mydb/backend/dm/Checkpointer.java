@@ -0,0 +1,82 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台检查点线程
+ * 定期检查日志的增长，新增的日志超过阈值，或距上次检查点太久且有新日志时做一次检查点
+ * 恢复只需重做最后一个检查点之后的日志，重启时间不再随数据库的使用时间增长
+ */
+class Checkpointer implements Runnable {
+    // 两次检查日志增长之间的间隔
+    private static final long CHECK_MILLIS = 1000;
+    // 两次检查点之间最多新增的日志
+    private static final long LOG_LIM = 64L << 20;
+    // 两次检查点之间的最长间隔
+    private static final long INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    private DataManagerImpl dm;
+    private Thread thread;
+    private Lock lock;
+    private Condition wakeup;
+    private volatile boolean closed;
+    private long lastLsn;               // 上次检查点时的日志长度
+    private long lastTime;
+
+    Checkpointer(DataManagerImpl dm) {
+        this.dm = dm;
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+        this.thread = new Thread(this, "checkpointer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        lastLsn = dm.logger.length();
+        lastTime = System.currentTimeMillis();
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while(!closed) {
+            lock.lock();
+            try {
+                if(!closed) {
+                    wakeup.await(CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch(InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+            if(closed) break;
+            long length = dm.logger.length();
+            long now = System.currentTimeMillis();
+            if(length - lastLsn >= LOG_LIM || (length > lastLsn && now - lastTime >= INTERVAL_MILLIS)) {
+                dm.checkpoint();
+                lastLsn = length;
+                lastTime = now;
+            }
+        }
+    }
+
+    // 停止检查点线程，进行中的检查点会先做完
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,35 +1,71 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.io.InputStream;
+import java.util.List;
+
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheOptions;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    //批量插入，返回的uid与datas一一对应
+    List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception;
+    //插入一页放不下的大数据，拆成多块存入溢出页，返回第一块的uid
+    long insertOverflow(long xid, byte[] data) throws Exception;
+    //从第一块的uid开始按顺序读出溢出数据，读到哪块才读哪一页
+    InputStream readOverflow(long uid);
+    //回收一条已没有事务能看到的数据，记日志
+    void free(long uid);
+    //回收从uid开始的整条溢出数据，记日志
+    void freeOverflow(long uid);
+    //数据库的页大小，单条数据和索引节点的大小都受其限制
+    int getPageSize();
+    //数据库文件的压缩比，不压缩时为0
+    double getCompressionRatio();
+    //已追加的日志全部落盘，事务提交前调用
+    void flushLog();
     void close();
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, tm, new PageCacheOptions());
+    }
+
+    public static DataManager create(String path, long mem, TransactionManager tm, PageCacheOptions opts) {
+        PageCache pc = PageCache.create(path, mem, opts);
         Logger lg = Logger.create(path);
+        FreeSpaceMap fsm = FreeSpaceMap.create(path, pc.getPageSize());
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm);
         dm.initPageOne();
+        dm.checkpointer.start();
         return dm;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+        return open(path, mem, tm, new PageCacheOptions());
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, PageCacheOptions opts) {
+        PageCache pc = PageCache.open(path, mem, opts);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        FreeSpaceMap fsm = FreeSpaceMap.open(path, pc.getPageSize());
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm);
         if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            Recover.recover(tm, lg, pc, PageOne.getPageCount(dm.pageOne));
+        } else if(PageOne.getPageCount(dm.pageOne) > 0) {
+            //正常关闭，以记录的页数为准，去掉可能残留的预扩展部分
+            pc.truncateByBgno(PageOne.getPageCount(dm.pageOne));
         }
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.checkpointer.start();
 
         return dm;
     }
@@ -1,6 +1,22 @@
 package top.guoziyang.mydb.backend.dm;
 
-import top.guoziyang.mydb.backend.common.AbstractCache;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItemImpl;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
@@ -8,36 +24,60 @@ import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageIndex;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageInfo;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.Types;
 import top.guoziyang.mydb.common.Error;
 
-//本质上是一个对dataItem的cache
+//dataItem只是页面上的视图，读取时只在页面缓存中持有一次页面，不再单独缓存
 //同时还集成了对pc，log，page，tm的统筹调用
-public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+public class DataManagerImpl implements DataManager {
+
+    // dataitem锁按uid分段，同一uid的所有句柄共用一把锁
+    private static final int LOCK_STRIPES = 1024;
 
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
+    FreeSpaceMap fsm;
     Page pageOne;
+    int maxFreeSpace;                   // 由页大小决定的单页最大可用空间
+    ReadWriteLock[] itemLocks;
+    Map<Long, Long> firstLsns;          // 写过日志的事务，及其第一条日志不早于的位置，检查点时清掉已结束的
+    Checkpointer checkpointer;
+    Lock checkpointLock;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
-        super(0);
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, FreeSpaceMap fsm) {
         this.pc = pc;
         this.logger = logger;
+        pc.setLogger(logger);
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.fsm = fsm;
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize());
+        this.itemLocks = new ReadWriteLock[LOCK_STRIPES];
+        for(int i = 0; i < LOCK_STRIPES; i ++) {
+            itemLocks[i] = new ReentrantReadWriteLock();
+        }
+        this.firstLsns = new ConcurrentHashMap<>();
+        this.checkpointer = new Checkpointer(this);
+        this.checkpointLock = new ReentrantLock();
     }
 
     @Override
     public DataItem read(long uid) throws Exception {
-        DataItemImpl di = (DataItemImpl)super.get(uid);
+        int slot = (int)(uid & ((1L << 16) - 1));
+        int pgno = (int)(uid >>> 32);
+        Page pg = pc.getPage(pgno);
+        DataItemImpl di = (DataItemImpl)DataItem.parseDataItem(pg, slot, this);
         if(!di.isValid()) {
-            di.release();
+            releaseDataItem(di);
             return null;
         }
         return di;
@@ -48,91 +88,379 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         //把data读到byte数组
         //包装为valid，size，data
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if(raw.length > PageX.MAX_FREE_SPACE) {
+        if(raw.length > maxFreeSpace) {
             throw Error.DataTooLargeException;
         }
+        return insertRaw(xid, raw);
+    }
+
+    /**
+     * 批量插入，每页只取用一次，同一页中的多条合成一条日志
+     * 先全部检查大小，有放不下的就一条也不插入
+     */
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception {
+        List<byte[]> raws = new ArrayList<>(datas.size());
+        for(byte[] data : datas) {
+            byte[] raw = DataItem.wrapDataItemRaw(data);
+            if(raw.length > maxFreeSpace) {
+                throw Error.DataTooLargeException;
+            }
+            raws.add(raw);
+        }
+        List<Long> uids = new ArrayList<>(raws.size());
+        int from = 0;
+        while(from < raws.size()) {
+            from += insertRaws(xid, raws, from, uids);
+        }
+        return uids;
+    }
 
-        PageInfo pi = null;
+    private long insertRaw(long xid, byte[] raw) throws Exception {
+        List<Long> uids = new ArrayList<>(1);
+        insertRaws(xid, Collections.singletonList(raw), 0, uids);
+        return uids.get(0);
+    }
+
+    // 选一页，从raws[from]开始尽量多地放进去，uid依次加入uids，返回放入的条数
+    private int insertRaws(long xid, List<byte[]> raws, int from, List<Long> uids) throws Exception {
+        byte[] raw = raws.get(from);
+        //批量插入时按剩余的总量找页，尽量一页放满
+        int want = 0;
+        for(int i = from; i < raws.size() && want < maxFreeSpace; i ++) {
+            want += raws.get(i).length;
+        }
+        want = Math.min(want, maxFreeSpace);
         //多次循环尝试
-        //理论上一次失败后就会新建且成功
+        //页面需要整理却有其他线程持有时放不下，换一页再试
         //设置五次以防万一
         for(int i = 0; i < 5; i ++) {
             //寻找符合row的大小的pageIndex
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                //创建一个新pageX，数据为initRow，即只有开头两位数字2
-                //且放入cache，cache负责给一个新的pageNo，并写入page
+            PageInfo pi = pIndex.select(want);
+            if (pi == null) {
+                //创建一个新pageX，且放入cache，cache负责给一个新的pageNo，并写入page
                 //返回的pageNo给manager
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                int newPgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
+                addPageIndex(newPgno, maxFreeSpace);
+                continue;
+            }
+
+            Page pg = null;
+            int freeSpace = 0;
+            boolean inserted = false;
+            try {
+                pg = pc.getPage(pi.pgno);
+                pg.lock();
+                try {
+                    if(!PageX.fits(pg, raw.length)) {
+                        reclaim(pg);
+                    }
+                    if(!PageX.fits(pg, raw.length)) {
+                        //暂时无法整理，先按连续空间登记
+                        freeSpace = PageX.getContiguousFreeSpace(pg);
+                        continue;
+                    }
+                    int n = PageX.fitCount(pg, raws, from);
+                    byte[] log = n == 1 ? Recover.insertLog(xid, pg, raw) : Recover.batchInsertLog(xid, pg, raws.subList(from, from+n));
+                    noteFirstLsn(xid);
+                    //先标脏再记日志，检查点不会漏掉日志已在它之前的页面
+                    pg.setDirty(true);
+                    pg.setLsn(logger.log(log));
+                    //写进page，根据地址生成uid
+                    for(int k = from; k < from+n; k ++) {
+                        int slot = PageX.insert(pg, raws.get(k));
+                        uids.add(Types.addressToUid(pi.pgno, slot));
+                    }
+                    inserted = true;
+                    freeSpace = freeSpace(pg);
+                    return n;
+                } finally {
+                    pg.unlock();
+                }
+            } finally {
+                // 将取出的pg重新插入pIndex
+                if(pg != null) {
+                    if(!inserted && freeSpace == 0) {
+                        freeSpace = PageX.getContiguousFreeSpace(pg);
+                    }
+                    pg.release();
+                }
+                addPageIndex(pi.pgno, freeSpace);
             }
         }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
+        throw Error.DatabaseBusyException;
+    }
+
+    /**
+     * 溢出数据按块存放，每块是一个dataitem：[NextUid][Data]，最后一块的NextUid为0
+     * 从最后一块开始倒着写，写每块时已知下一块的uid
+     * 每块占满一页，块的大小随所在页的空闲空间而定，不满一块的开头和普通数据一样找页存放
+     * 每块的插入照常记日志，事务在崩溃时未提交的话，恢复会把这些块置为非法，之后可被回收
+     */
+    @Override
+    public long insertOverflow(long xid, byte[] data) throws Exception {
+        long next = 0;
+        int end = data.length;
+        List<Long> uids = new ArrayList<>(1);
+        while(end > overflowChunkSize()) {
+            end = insertChunk(xid, data, end, next, uids);
+            next = uids.remove(0);
+        }
+        if(end > 0) {
+            next = insertRaw(xid, DataItem.wrapDataItemRaw(Bytes.concat(Parser.long2Byte(next), Arrays.copyOfRange(data, 0, end))));
         }
+        return next;
+    }
 
-        Page pg = null;
-        int freeSpace = 0;
+    @Override
+    public InputStream readOverflow(long uid) {
+        return new OverflowInputStream(this, uid);
+    }
+
+    // 顺着链逐块回收，先读出下一块的uid再回收当前块
+    @Override
+    public void freeOverflow(long uid) {
+        long next = uid;
+        while(next != 0) {
+            long cur = next;
+            DataItem di = null;
+            try {
+                di = read(cur);
+            } catch(Exception e) {
+                Panic.panic(e);
+            }
+            if(di == null) {
+                return;
+            }
+            try {
+                SubArray sa = di.data();
+                next = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OverflowInputStream.OF_NEXT_UID, sa.start+OverflowInputStream.OF_CHUNK_DATA));
+            } finally {
+                di.release();
+            }
+            free(cur);
+        }
+    }
+
+    // 空页中一块能存放的数据
+    int overflowChunkSize() {
+        return maxFreeSpace - DataItem.HEAD_SIZE - OverflowInputStream.OF_CHUNK_DATA;
+    }
+
+    /**
+     * 把data[0, end)的尾部作为一块写入一页，uid加入uids，返回这块的起点
+     * 先试一次pIndex中至少能放下半块的页，回收后空出的页留有作废的槽，放不下整块，块就小一些
+     * 放得下的不足半块时放回，开新页
+     */
+    private int insertChunk(long xid, byte[] data, int end, long next, List<Long> uids) throws Exception {
+        PageInfo pi = pIndex.select(overflowChunkSize() / 2 + DataItem.HEAD_SIZE + OverflowInputStream.OF_CHUNK_DATA);
+        if(pi != null) {
+            int start = insertChunkInto(xid, pi.pgno, data, end, next, uids, false);
+            if(start >= 0) {
+                return start;
+            }
+        }
+        //新页还未登记到pIndex，其他线程不会选中
+        int pgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
+        return insertChunkInto(xid, pgno, data, end, next, uids, true);
+    }
+
+    // 写入指定的页，再按剩余空间登记，放不下半块时返回-1
+    private int insertChunkInto(long xid, int pgno, byte[] data, int end, long next, List<Long> uids, boolean fresh) throws Exception {
+        int overhead = DataItem.HEAD_SIZE + OverflowInputStream.OF_CHUNK_DATA;
+        Page pg = pc.getPage(pgno);
+        pg.lock();
         try {
-            pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
-            //写进page
-            short offset = PageX.insert(pg, raw);
-            //保存，释放page
+            if(!fresh && !PageX.fits(pg, overflowChunkSize() + overhead)) {
+                reclaim(pg);
+            }
+            int n = Math.min(end, PageX.getContiguousFreeSpace(pg) - overhead);
+            if(n < overflowChunkSize() / 2) {
+                //空页一定放得下，放不下说明拿到的不是刚写入的页，插入会写到页外
+                if(fresh) {
+                    Panic.panic(Error.CorruptedPageException);
+                }
+                addPageIndex(pgno, PageX.getContiguousFreeSpace(pg));
+                return -1;
+            }
+            byte[] raw = DataItem.wrapDataItemRaw(Bytes.concat(Parser.long2Byte(next), Arrays.copyOfRange(data, end-n, end)));
+            noteFirstLsn(xid);
+            pg.setDirty(true);
+            pg.setLsn(logger.log(Recover.insertLog(xid, pg, raw)));
+            int slot = PageX.insert(pg, raw);
+            addPageIndex(pgno, freeSpace(pg));
+            uids.add(Types.addressToUid(pgno, slot));
+            return end - n;
+        } finally {
+            pg.unlock();
             pg.release();
-            //根据地址生成uid
-            return Types.addressToUid(pi.pgno, offset);
+        }
+    }
 
+    /**
+     * 回收一条dataitem，页面因此升到pIndex更高的桶时重新登记，否则更大的插入选不到它
+     * 数据留在原处，等插入时整理；持有它的句柄读到的仍是原来的字节，之后再读则为非法
+     * 调用方保证没有线程会再通过句柄修改它
+     */
+    @Override
+    public void free(long uid) {
+        int slot = (int)(uid & ((1L << 16) - 1));
+        int pgno = (int)(uid >>> 32);
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        pg.lock();
+        try {
+            if(PageX.getItemOffset(pg, slot) == 0) {
+                return;
+            }
+            int before = freeSpace(pg);
+            pg.setDirty(true);
+            pg.setLsn(logger.log(Recover.freeLog(TransactionManagerImpl.SUPER_XID, pgno, slot)));
+            PageX.free(pg, slot);
+            int after = freeSpace(pg);
+            if(pIndex.bucketOf(after) > pIndex.bucketOf(before)) {
+                pIndex.update(pgno, after);
+                fsm.set(pgno, after);
+            }
         } finally {
-            // 将取出的pg重新插入pIndex
-            if(pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+            pg.unlock();
+            pg.release();
+        }
+    }
+
+    /**
+     * 整理页面，回收其中非法的dataitem，调用方持有页锁
+     * 整理会移动数据，只在没有其他线程持有该页时进行：读dataitem先持有页面再在页锁内查槽，
+     * 持锁时没有其他引用，之后的读者会看到整理后的槽
+     */
+    private void reclaim(Page pg) {
+        if(pc.isShared(pg)) {
+            return;
+        }
+        int count = PageX.getSlotCount(pg);
+        for(int slot = 0; slot < count; slot ++) {
+            int offset = PageX.getItemOffset(pg, slot);
+            if(offset != 0 && DataItem.isRawInvalid(pg.getData(), pg.getOffset()+offset)) {
+                //回收要记日志，恢复时按顺序重放，之后对该槽的重做不会落在别的数据上
+                pg.setDirty(true);
+                pg.setLsn(logger.log(Recover.freeLog(TransactionManagerImpl.SUPER_XID, pg.getPageNumber(), slot)));
+                PageX.free(pg, slot);
             }
         }
+        PageX.compact(pg);
+    }
+
+    // 页面整理后能用的空间，包括非法dataitem占用的部分
+    private int freeSpace(Page pg) {
+        int free = PageX.getFreeSpace(pg);
+        int count = PageX.getSlotCount(pg);
+        for(int slot = 0; slot < count; slot ++) {
+            int offset = PageX.getItemOffset(pg, slot);
+            if(offset != 0 && DataItem.isRawInvalid(pg.getData(), pg.getOffset()+offset)) {
+                free += PageX.getItemLength(pg, slot);
+            }
+        }
+        return Math.min(free, maxFreeSpace);
+    }
+
+    @Override
+    public int getPageSize() {
+        return pc.getPageSize();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return pc.getCompressionRatio();
     }
 
     @Override
     public void close() {
-        super.close();
-        logger.close();
+        checkpointer.close();
+        //空闲空间表记下此时的日志长度，之后的日志涉及的页打开时重新扫描
+        flushLog();
+        fsm.write(logger.length());
 
+        PageOne.setPageCount(pageOne, pc.getPageNumber());
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
+        //页面都已落盘，之前的日志不再需要，只留最后一段
+        logger.removeBefore(logger.length());
+        logger.close();
     }
 
-    // 为xid生成update日志
+    // 为xid生成update日志，记在dataitem所在页的LSN上
+    // 调用方仍在页面的修改过程中，写线程此时不会拷贝该页
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        noteFirstLsn(xid);
+        di.page().setLsn(logger.log(log));
     }
 
-    public void releaseDataItem(DataItem di) {
-        super.release(di.getUid());
+    // 事务写第一条日志之前记下日志的当前长度，之后追加的日志都不早于它
+    private void noteFirstLsn(long xid) {
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            firstLsns.computeIfAbsent(xid, k -> logger.length());
+        }
     }
 
-    @Override
-    protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int)(uid & ((1L << 32) - 1));
-        Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+    /**
+     * 模糊检查点，由检查点线程调用，期间照常读写和提交
+     * 先记下日志的当前长度，这之前的日志对应的修改此时都已在缓存的页面上，
+     * 再写回此刻的脏页并落盘，之后这些修改都已在文件里，恢复时从记下的位置开始重做
+     * 当时活跃的事务崩溃时可能还要撤销，它们更早的日志也要保留
+     * 检查点日志落盘后，更早的日志段即可回收
+     */
+    void checkpoint() {
+        checkpointLock.lock();
+        try {
+            long redoLsn = logger.length();
+            Map<Long, Long> active = new HashMap<>();
+            for(Map.Entry<Long, Long> entry : firstLsns.entrySet()) {
+                if(tm.isActive(entry.getKey())) {
+                    active.put(entry.getKey(), entry.getValue());
+                } else {
+                    //已提交或撤销，不会再写日志
+                    firstLsns.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            int pageCount = pc.getPageNumber();
+            pc.flushDirtyPages();
+            long lsn = logger.log(Recover.checkpointLog(redoLsn, pageCount, active));
+            logger.flush(lsn);
+            //空闲空间表也随检查点写出，崩溃后只需重新扫描重做位置之后的日志涉及的页
+            //恢复时撤销的插入只会让页面空闲更多，表中的值仍是低估
+            fsm.write(redoLsn);
+            logger.removeBefore(Recover.checkpointStart(redoLsn, active));
+        } finally {
+            checkpointLock.unlock();
+        }
     }
 
     @Override
-    protected void releaseForCache(DataItem di) {
+    public void flushLog() {
+        logger.flush(logger.length());
+    }
+
+    // 每次读取得到独立的句柄，释放即放开对页面的持有
+    public void releaseDataItem(DataItem di) {
         di.page().release();
+        ((DataItemImpl)di).recycle();
+    }
+
+    // 锁不随句柄分配，句柄之间也不会嵌套加锁，分段共用不会死锁
+    public ReadWriteLock itemLock(long uid) {
+        int h = Long.hashCode(uid * 0x9E3779B97F4A7C15L);
+        return itemLocks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
     }
 
     // 在创建文件时初始化PageOne
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -149,23 +477,42 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         } catch (Exception e) {
             Panic.panic(e);
         }
+        //普通页格式不同，日志也无法按槽重放，须在恢复前拒绝
+        if(PageOne.getPageFormat(pageOne) != PageOne.PAGE_FORMAT) {
+            Panic.panic(Error.BadPageFormatException);
+        }
         return PageOne.checkVc(pageOne);
     }
 
     // 初始化pageIndex
+    // 空闲空间表可用时只读出表中没有、或之后的日志涉及到的页
     void fillPageIndex() {
+        Set<Integer> stale = null;
+        //表记录的位置之后的日志须都还在
+        if(fsm.isValid() && fsm.getLogPosition() >= logger.start() && fsm.getLogPosition() <= logger.length()) {
+            stale = Recover.pagesLoggedSince(logger, fsm.getLogPosition());
+        }
         //编号从1开始，且pageOne作为校验不是实际数据
         int pageNumber = pc.getPageNumber();
         for(int i = 2; i <= pageNumber; i ++) {
+            if(stale != null && i <= fsm.getPageCount() && !stale.contains(i)) {
+                pIndex.add(i, fsm.get(i));
+                continue;
+            }
             Page pg = null;
             try {
                 pg = pc.getPage(i);
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            addPageIndex(pg.getPageNumber(), freeSpace(pg));
             pg.release();
         }
     }
+
+    private void addPageIndex(int pgno, int freeSpace) {
+        pIndex.add(pgno, freeSpace);
+        fsm.set(pgno, freeSpace);
+    }
     
 }
@@ -0,0 +1,80 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 按块读出溢出数据，每次只持有当前块的一份拷贝
+ * 块结构
+ * [NextUid 8][Data]
+ */
+class OverflowInputStream extends InputStream {
+    static final int OF_NEXT_UID = 0;
+    static final int OF_CHUNK_DATA = OF_NEXT_UID + 8;
+
+    private DataManagerImpl dm;
+    private long next;                  // 下一块的uid，为0说明已读到最后一块
+    private byte[] chunk;
+    private int pos;
+
+    OverflowInputStream(DataManagerImpl dm, long uid) {
+        this.dm = dm;
+        this.next = uid;
+        this.chunk = new byte[0];
+    }
+
+    // 当前块读完时读入下一块，没有更多数据时返回false
+    private boolean fill() throws IOException {
+        while(pos == chunk.length) {
+            if(next == 0) {
+                return false;
+            }
+            DataItem di;
+            try {
+                di = dm.read(next);
+            } catch(Exception e) {
+                throw new IOException(e);
+            }
+            if(di == null) {
+                throw new IOException(Error.NullEntryException);
+            }
+            try {
+                SubArray sa = di.data();
+                next = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_NEXT_UID, sa.start+OF_CHUNK_DATA));
+                chunk = Arrays.copyOfRange(sa.raw, sa.start+OF_CHUNK_DATA, sa.end);
+                pos = 0;
+            } finally {
+                di.release();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill()) {
+            return -1;
+        }
+        return chunk[pos ++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+}
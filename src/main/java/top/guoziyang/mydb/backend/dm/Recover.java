@@ -3,9 +3,11 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import com.google.common.primitives.Bytes;
 
@@ -23,6 +25,9 @@ public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_FREE = 2;
+    private static final byte LOG_TYPE_BATCH_INSERT = 3;
+    private static final byte LOG_TYPE_CHECKPOINT = 4;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -30,64 +35,105 @@ public class Recover {
     static class InsertLogInfo {
         long xid;
         int pgno;
-        short offset;
+        int slot;
         byte[] raw;
     }
 
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
+        int slot;
         byte[] oldRaw;
         byte[] newRaw;
     }
 
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    static class BatchInsertLogInfo {
+        long xid;
+        int pgno;
+        int slot;                   // 第一条的槽号，之后依次加一
+        List<byte[]> raws;
+    }
+
+    static class FreeLogInfo {
+        long xid;
+        int pgno;
+        int slot;
+    }
+
+    static class CheckpointLogInfo {
+        long redoLsn;               // 之前的日志对应的修改都已落盘
+        int pageCount;              // 检查点时的页数，这些页都已落盘
+        Map<Long, Long> active;     // 当时活跃的事务，及其第一条日志不早于的位置
+    }
+
+    // pageCount为上次正常关闭时的页数，这些页都已落盘，涉及它们的早期日志可能已被删除
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int pageCount) {
         System.out.println("Recovering...");
 
         lg.rewind();
         int maxPgno = 0;
+        CheckpointLogInfo ck = null;
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+            if(isCheckpointLog(log)) {
+                //以最后一个检查点为准
+                ck = parseCheckpointLog(log);
+                pageCount = Math.max(pageCount, ck.pageCount);
+                continue;
             }
+            int pgno = pgnoOf(log);
             if(pgno > maxPgno) {
                 maxPgno = pgno;
             }
         }
+        //不能按保留的日志把已落盘的页截掉
+        maxPgno = Math.max(maxPgno, pageCount);
         if(maxPgno == 0) {
             maxPgno = 1;
         }
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
+        //有检查点时从它记下的位置开始重做，之前的修改都已落盘
+        //撤销还要从当时活跃的事务的第一条日志开始
+        long redoFrom = lg.start();
+        long undoFrom = lg.start();
+        if(ck != null) {
+            redoFrom = ck.redoLsn;
+            undoFrom = checkpointStart(ck.redoLsn, ck.active);
+            System.out.println("Redo from checkpoint at " + redoFrom + ".");
+        }
+
+        redoTranscations(tm, lg, pc, redoFrom);
         System.out.println("Redo Transactions Over.");
 
-        undoTranscations(tm, lg, pc);
+        undoTranscations(tm, lg, pc, undoFrom);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
+    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc, long from) {
+        lg.rewind(from);
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            if(isInsertLog(log)) {
+            if(isCheckpointLog(log)) {
+                continue;
+            } else if(isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 long xid = li.xid;
                 if(!tm.isActive(xid)) {
                     doInsertLog(pc, log, REDO);
                 }
+            } else if(isBatchInsertLog(log)) {
+                if(!tm.isActive(parseBatchInsertLog(log).xid)) {
+                    doBatchInsertLog(pc, log, REDO);
+                }
+            } else if(isFreeLog(log)) {
+                //回收由超级事务进行，总是重做
+                doFreeLog(pc, log);
             } else {
                 UpdateLogInfo xi = parseUpdateLog(log);
                 long xid = xi.xid;
@@ -98,13 +144,15 @@ public class Recover {
         }
     }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
+    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc, long from) {
         Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
+        lg.rewind(from);
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            if(isInsertLog(log)) {
+            if(isCheckpointLog(log)) {
+                continue;
+            } else if(isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 long xid = li.xid;
                 if(tm.isActive(xid)) {
@@ -113,6 +161,16 @@ public class Recover {
                     }
                     logCache.get(xid).add(log);
                 }
+            } else if(isBatchInsertLog(log)) {
+                long xid = parseBatchInsertLog(log).xid;
+                if(tm.isActive(xid)) {
+                    if(!logCache.containsKey(xid)) {
+                        logCache.put(xid, new ArrayList<>());
+                    }
+                    logCache.get(xid).add(log);
+                }
+            } else if(isFreeLog(log)) {
+                continue;
             } else {
                 UpdateLogInfo xi = parseUpdateLog(log);
                 long xid = xi.xid;
@@ -132,6 +190,8 @@ public class Recover {
                 byte[] log = logs.get(i);
                 if(isInsertLog(log)) {
                     doInsertLog(pc, log, UNDO);
+                } else if(isBatchInsertLog(log)) {
+                    doBatchInsertLog(pc, log, UNDO);
                 } else {
                     doUpdateLog(pc, log, UNDO);
                 }
@@ -144,6 +204,46 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isFreeLog(byte[] log) {
+        return log[0] == LOG_TYPE_FREE;
+    }
+
+    private static boolean isBatchInsertLog(byte[] log) {
+        return log[0] == LOG_TYPE_BATCH_INSERT;
+    }
+
+    private static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
+
+    // 日志涉及的页号
+    private static int pgnoOf(byte[] log) {
+        if(isInsertLog(log)) {
+            return parseInsertLog(log).pgno;
+        } else if(isBatchInsertLog(log)) {
+            return parseBatchInsertLog(log).pgno;
+        } else if(isFreeLog(log)) {
+            return parseFreeLog(log).pgno;
+        } else {
+            return parseUpdateLog(log).pgno;
+        }
+    }
+
+    // 从position处开始的日志涉及的页，这些页的空闲空间在position之后可能变化过
+    public static Set<Integer> pagesLoggedSince(Logger lg, long position) {
+        Set<Integer> pages = new HashSet<>();
+        lg.rewind(position);
+        while(true) {
+            byte[] log = lg.next();
+            if(log == null) break;
+            if(!isCheckpointLog(log)) {
+                pages.add(pgnoOf(log));
+            }
+        }
+        lg.rewind();
+        return pages;
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
@@ -164,7 +264,7 @@ public class Recover {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.slot = (int)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
         int length = (log.length - OF_UPDATE_RAW) / 2;
@@ -175,17 +275,17 @@ public class Recover {
 
     private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
         int pgno;
-        short offset;
+        int slot;
         byte[] raw;
         if(flag == REDO) {
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.newRaw;
         } else {
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.oldRaw;
         }
         Page pg = null;
@@ -195,30 +295,30 @@ public class Recover {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            PageX.recoverUpdate(pg, raw, slot);
         } finally {
             pg.release();
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID+8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_RAW = OF_INSERT_SLOT+2;
 
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] slotRaw = Parser.short2Byte((short)PageX.nextSlot(pg));
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, raw);
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_RAW)) & 0xFFFF;
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
@@ -235,9 +335,156 @@ public class Recover {
             if(flag == UNDO) {
                 DataItem.setDataItemRawInvalid(li.raw);
             }
-            PageX.recoverInsert(pg, li.raw, li.offset);
+            PageX.recoverInsert(pg, li.raw, li.slot);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [FirstSlot] [Count] [Length1] [Raw1] [Length2] [Raw2] ...
+    // 批量插入时同一页中连续的多条合成一条日志
+    private static final int OF_BATCH_PGNO = OF_XID+8;
+    private static final int OF_BATCH_SLOT = OF_BATCH_PGNO+4;
+    private static final int OF_BATCH_COUNT = OF_BATCH_SLOT+2;
+    private static final int OF_BATCH_RAWS = OF_BATCH_COUNT+2;
+
+    public static byte[] batchInsertLog(long xid, Page pg, List<byte[]> raws) {
+        int size = OF_BATCH_RAWS;
+        for(byte[] raw : raws) {
+            size += 2 + raw.length;
+        }
+        byte[] log = new byte[size];
+        log[OF_TYPE] = LOG_TYPE_BATCH_INSERT;
+        System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+        System.arraycopy(Parser.int2Byte(pg.getPageNumber()), 0, log, OF_BATCH_PGNO, 4);
+        System.arraycopy(Parser.short2Byte((short)PageX.nextSlot(pg)), 0, log, OF_BATCH_SLOT, 2);
+        System.arraycopy(Parser.short2Byte((short)raws.size()), 0, log, OF_BATCH_COUNT, 2);
+        int pos = OF_BATCH_RAWS;
+        for(byte[] raw : raws) {
+            System.arraycopy(Parser.short2Byte((short)raw.length), 0, log, pos, 2);
+            System.arraycopy(raw, 0, log, pos+2, raw.length);
+            pos += 2 + raw.length;
+        }
+        return log;
+    }
+
+    private static BatchInsertLogInfo parseBatchInsertLog(byte[] log) {
+        BatchInsertLogInfo li = new BatchInsertLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_BATCH_PGNO));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_BATCH_PGNO, OF_BATCH_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_BATCH_SLOT, OF_BATCH_COUNT)) & 0xFFFF;
+        int count = Parser.parseShort(Arrays.copyOfRange(log, OF_BATCH_COUNT, OF_BATCH_RAWS)) & 0xFFFF;
+        li.raws = new ArrayList<>(count);
+        int pos = OF_BATCH_RAWS;
+        for(int i = 0; i < count; i ++) {
+            int length = Parser.parseShort(Arrays.copyOfRange(log, pos, pos+2)) & 0xFFFF;
+            li.raws.add(Arrays.copyOfRange(log, pos+2, pos+2+length));
+            pos += 2 + length;
+        }
+        return li;
+    }
+
+    private static void doBatchInsertLog(PageCache pc, byte[] log, int flag) {
+        BatchInsertLogInfo li = parseBatchInsertLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            for(int i = 0; i < li.raws.size(); i ++) {
+                byte[] raw = li.raws.get(i);
+                if(flag == UNDO) {
+                    DataItem.setDataItemRawInvalid(raw);
+                }
+                PageX.recoverInsert(pg, raw, li.slot+i);
+            }
         } finally {
             pg.release();
         }
     }
+
+    // [LogType] [XID] [Pgno] [Slot]
+    // 回收页面中非法的dataitem，整理页面前写入
+    private static final int OF_FREE_PGNO = OF_XID+8;
+    private static final int OF_FREE_SLOT = OF_FREE_PGNO+4;
+    private static final int FREE_LOG_SIZE = OF_FREE_SLOT+2;
+
+    public static byte[] freeLog(long xid, int pgno, int slot) {
+        byte[] logTypeRaw = {LOG_TYPE_FREE};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] slotRaw = Parser.short2Byte((short)slot);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw);
+    }
+
+    private static FreeLogInfo parseFreeLog(byte[] log) {
+        FreeLogInfo li = new FreeLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_FREE_PGNO));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_FREE_PGNO, OF_FREE_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_FREE_SLOT, FREE_LOG_SIZE)) & 0xFFFF;
+        return li;
+    }
+
+    private static void doFreeLog(PageCache pc, byte[] log) {
+        FreeLogInfo li = parseFreeLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            PageX.recoverFree(pg, li.slot);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [RedoLsn] [PageCount] [Count] [Xid1] [FirstLsn1] [Xid2] [FirstLsn2] ...
+    // 模糊检查点，记下重做的起点和当时活跃的事务
+    private static final int OF_CHECKPOINT_REDO = OF_TYPE+1;
+    private static final int OF_CHECKPOINT_PAGES = OF_CHECKPOINT_REDO+8;
+    private static final int OF_CHECKPOINT_COUNT = OF_CHECKPOINT_PAGES+4;
+    private static final int OF_CHECKPOINT_XIDS = OF_CHECKPOINT_COUNT+4;
+
+    public static byte[] checkpointLog(long redoLsn, int pageCount, Map<Long, Long> active) {
+        byte[] log = new byte[OF_CHECKPOINT_XIDS + active.size()*16];
+        log[OF_TYPE] = LOG_TYPE_CHECKPOINT;
+        System.arraycopy(Parser.long2Byte(redoLsn), 0, log, OF_CHECKPOINT_REDO, 8);
+        System.arraycopy(Parser.int2Byte(pageCount), 0, log, OF_CHECKPOINT_PAGES, 4);
+        System.arraycopy(Parser.int2Byte(active.size()), 0, log, OF_CHECKPOINT_COUNT, 4);
+        int pos = OF_CHECKPOINT_XIDS;
+        for(Entry<Long, Long> entry : active.entrySet()) {
+            System.arraycopy(Parser.long2Byte(entry.getKey()), 0, log, pos, 8);
+            System.arraycopy(Parser.long2Byte(entry.getValue()), 0, log, pos+8, 8);
+            pos += 16;
+        }
+        return log;
+    }
+
+    private static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+        CheckpointLogInfo li = new CheckpointLogInfo();
+        li.redoLsn = Parser.parseLong(Arrays.copyOfRange(log, OF_CHECKPOINT_REDO, OF_CHECKPOINT_PAGES));
+        li.pageCount = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKPOINT_PAGES, OF_CHECKPOINT_COUNT));
+        int count = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKPOINT_COUNT, OF_CHECKPOINT_XIDS));
+        li.active = new HashMap<>();
+        int pos = OF_CHECKPOINT_XIDS;
+        for(int i = 0; i < count; i ++) {
+            long xid = Parser.parseLong(Arrays.copyOfRange(log, pos, pos+8));
+            li.active.put(xid, Parser.parseLong(Arrays.copyOfRange(log, pos+8, pos+16)));
+            pos += 16;
+        }
+        return li;
+    }
+
+    // 恢复需要的最早的日志：重做的起点和活跃事务的第一条日志中较早的
+    public static long checkpointStart(long redoLsn, Map<Long, Long> active) {
+        long start = redoLsn;
+        for(long lsn : active.values()) {
+            start = Math.min(start, lsn);
+        }
+        return start;
+    }
 }
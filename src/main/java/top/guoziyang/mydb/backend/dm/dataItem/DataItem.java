@@ -1,12 +1,11 @@
 package top.guoziyang.mydb.backend.dm.dataItem;
 
-import java.util.Arrays;
-
 import com.google.common.primitives.Bytes;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.Types;
 
@@ -34,13 +33,37 @@ public interface DataItem {
         return Bytes.concat(valid, size, raw);
     }
 
-    // 从页面的offset处解析处dataitem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    // 从页面的slot中解析出dataitem
+    // 整理页面会移动数据，查槽时持页锁；整理前会确认没有其他线程持有该页，之后数据位置不变
+    public static DataItem parseDataItem(Page pg, int slot, DataManagerImpl dm) {
+        int offset;
+        pg.lock();
+        try {
+            offset = PageX.getItemOffset(pg, slot);
+        } finally {
+            pg.unlock();
+        }
+        long uid = Types.addressToUid(pg.getPageNumber(), slot);
+        if(offset == 0) {
+            //槽已回收，返回一个非法的dataitem
+            byte[] invalid = wrapDataItemRaw(new byte[0]);
+            setDataItemRawInvalid(invalid);
+            return DataItemImpl.acquire(invalid, 0, invalid.length, pg, uid, dm);
+        }
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
-        short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
+        //offset为页内偏移，在raw中的位置还要加上页面的起始位置
+        int start = pg.getOffset() + offset;
+        //直接按大端解析长度，避免拷贝
+        int size = ((raw[start+DataItemImpl.OF_SIZE] & 0xFF) << 8) | (raw[start+DataItemImpl.OF_SIZE+1] & 0xFF);
+        return DataItemImpl.acquire(raw, start, start+size+DataItemImpl.OF_DATA, pg, uid, dm);
+    }
+
+    // dataitem在数据之前的头部长度
+    public static final int HEAD_SIZE = DataItemImpl.OF_DATA;
+
+    // 页内start处的dataitem是否已被置为非法
+    public static boolean isRawInvalid(byte[] raw, int start) {
+        return raw[start+DataItemImpl.OF_VALID] != (byte)0;
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
@@ -1,8 +1,8 @@
 package top.guoziyang.mydb.backend.dm.dataItem;
 
+import java.util.ArrayDeque;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
@@ -13,6 +13,10 @@ import top.guoziyang.mydb.backend.dm.page.Page;
  * [ValidFlag] [DataSize] [Data]
  * ValidFlag 1字节，0为合法，1为非法
  * DataSize  2字节，标识Data的长度
+ *
+ * 每次读取取一个句柄，句柄持有所在页面，释放后回收复用，SubArray随句柄保留，读取路径不再分配对象
+ * 锁按uid从DataManager中取，同一数据项的不同句柄互斥
+ * 修改前的镜像只在第一次before时分配
  */
 public class DataItemImpl implements DataItem {
 
@@ -20,7 +24,12 @@ public class DataItemImpl implements DataItem {
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
 
+    // 每个线程保留的空闲句柄上限
+    private static final int POOL_SIZE = 64;
+    private static final ThreadLocal<ArrayDeque<DataItemImpl>> pool = ThreadLocal.withInitial(() -> new ArrayDeque<>(POOL_SIZE));
+
     private SubArray raw;
+    private SubArray data;              // data()返回的视图，随raw一起更新
     private byte[] oldRaw;
     private Lock rLock;
     private Lock wLock;
@@ -28,15 +37,47 @@ public class DataItemImpl implements DataItem {
     private long uid;
     private Page pg;
 
-    public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
-        this.raw = raw;
-        this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        rLock = lock.readLock();
-        wLock = lock.writeLock();
-        this.dm = dm;
-        this.uid = uid;
-        this.pg = pg;
+    private DataItemImpl() {
+        raw = new SubArray(null, 0, 0);
+        data = new SubArray(null, 0, 0);
+    }
+
+    // 取一个空闲句柄指向raw[start, end)
+    static DataItemImpl acquire(byte[] raw, int start, int end, Page pg, long uid, DataManagerImpl dm) {
+        DataItemImpl di = pool.get().poll();
+        if(di == null) {
+            di = new DataItemImpl();
+        }
+        di.raw.raw = raw;
+        di.raw.start = start;
+        di.raw.end = end;
+        di.data.raw = raw;
+        di.data.start = start+OF_DATA;
+        di.data.end = end;
+        if(di.oldRaw != null && di.oldRaw.length != end - start) {
+            di.oldRaw = null;
+        }
+        di.pg = pg;
+        di.uid = uid;
+        di.dm = dm;
+        ReadWriteLock lock = dm.itemLock(uid);
+        di.rLock = lock.readLock();
+        di.wLock = lock.writeLock();
+        return di;
+    }
+
+    // 句柄释放后调用，此后不再有其他引用
+    public void recycle() {
+        raw.raw = null;
+        data.raw = null;
+        pg = null;
+        dm = null;
+        rLock = null;
+        wLock = null;
+        ArrayDeque<DataItemImpl> free = pool.get();
+        if(free.size() < POOL_SIZE) {
+            free.push(this);
+        }
     }
 
     public boolean isValid() {
@@ -45,25 +86,36 @@ public class DataItemImpl implements DataItem {
 
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
+        return data;
     }
 
     @Override
     public void before() {
         wLock.lock();
+        pg.beginUpdate();
         pg.setDirty(true);
+        if(oldRaw == null) {
+            oldRaw = new byte[raw.end - raw.start];
+        }
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        pg.setDirty(true);
+        pg.endUpdate();
         wLock.unlock();
     }
 
     @Override
     public void after(long xid) {
+        //修改完成后、记日志前再标脏一次，防止后台写线程在修改过程中清掉了脏标记
+        //检查点记下的日志位置之前的修改，其页面届时一定在脏页集合里
+        pg.setDirty(true);
+        //记完日志、页面LSN更新后才结束修改，写线程拷贝到这次修改时一定也拿到了它的LSN
         dm.logDataItem(xid, this);
+        pg.endUpdate();
         wLock.unlock();
     }
 
@@ -1,26 +1,38 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import top.guoziyang.mydb.backend.utils.Panic;
-import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
 public interface Logger {
     //必须实现的功能：记录，截断，读取下一个，rewind？，关闭
-    void log(byte[] data);
+    //追加一条日志，返回其LSN，不等待落盘
+    long log(byte[] data);
+    //保证LSN不超过lsn的日志都已落盘
+    void flush(long lsn);
     void truncate(long x) throws Exception;
     byte[] next();
-    //复位，把index改到4
+    //复位，回到最早保留的日志
     void rewind();
+    //从position处开始读，position须为某条日志的起点
+    void rewind(long position);
+    //已追加日志的长度，即最新的LSN，也是下一条日志写入的位置
+    long length();
+    //最早保留的日志的位置，之前的日志所在的段已删除
+    long start();
+    //删除只含lsn之前日志的段，调用方保证这些日志已不再需要
+    void removeBefore(long lsn);
     void close();
     //静态方法create和open
     public static Logger create(String path) {
+        return create(path, LoggerImpl.SEGMENT_SIZE);
+    }
+
+    public static Logger create(String path, int segmentSize) {
+        if(segmentSize < LoggerImpl.MIN_SEGMENT_SIZE) {
+            Panic.panic(Error.BadLogFileException);
+        }
         File f = new File(path+LoggerImpl.LOG_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -32,26 +44,19 @@ public interface Logger {
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
+        //没有控制文件时残留的段没有意义
+        LoggerImpl.removeFiles(path);
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        LoggerImpl lg = new LoggerImpl(path, segmentSize, 0);
+        lg.writeControl();
+        lg.init();
+        return lg;
+    }
 
-        return new LoggerImpl(raf, fc, 0);
+    // 删除日志的所有文件：控制文件、各段和备用段，返回控制文件是否删除成功
+    public static boolean remove(String path) {
+        LoggerImpl.removeFiles(path);
+        return new File(path+LoggerImpl.LOG_SUFFIX).delete();
     }
 
     public static Logger open(String path) {
@@ -63,16 +68,7 @@ public interface Logger {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
-
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+        LoggerImpl lg = LoggerImpl.load(path);
         lg.init();
 
         return lg;
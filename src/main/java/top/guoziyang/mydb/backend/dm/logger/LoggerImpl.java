@@ -1,10 +1,21 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,19 +27,44 @@ import top.guoziyang.mydb.common.Error;
 
 /**
  * 日志文件读写
- * 
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
- * 
+ *
+ * 日志按固定大小分段存放，.log为控制文件，段文件为.log.<段号>
+ * 控制文件格式为：
+ * [Format] [SegmentSize] [FirstSegment]
+ * Format 4字节int 日志格式标记
+ * SegmentSize 4字节int 每段的大小，创建时选定
+ * FirstSegment 8字节long 最早保留的段，之前的段已不再需要
+ * 控制文件先写临时文件再改名，不会留下写了一半的内容
+ *
+ * LSN为日志在整个日志中的结束位置，第n段存放[n*SegmentSize, (n+1)*SegmentSize)，随追加单调递增
+ * 一条日志不跨段，段尾放不下时从下一段开头写起，中间的部分补0
+ *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
- * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Size 4字节int 标识Data长度，不为0
+ * Checksum 4字节int 以非零初值对Data计算，再混入日志的起始位置
+ * 回收复用的段中残留的旧日志位置不同，校验不会通过
+ *
+ * 写到一半的日志只会出现在末尾，打开时从头校验每条日志，第一条不合法的日志及之后的部分即BadTail
+ * 段内遇到不合法的日志时，若下一段的第一条合法，说明此处是段尾补0的部分，接着读下一段
+ * 写满一段后先force再写下一段，下一段中出现合法日志时，前一段一定已完整落盘
+ *
+ * log只把日志追加到内存缓冲并返回LSN，需要持久化时调用flush(lsn)
+ * 组提交：flush时由其中一个线程作为leader把缓冲中的整批日志一次顺序写出并force，
+ * 其余等待的线程随这一批一起返回
  */
 public class LoggerImpl implements Logger {
 
     private static final int SEED = 13331;
+    private static final int CHECKSUM_INIT = 0x6D796462;
+    static final int LOG_FORMAT = 0x4D594C33;
+    // 缓冲中未写出的日志超过该大小时，追加的线程顺带写出
+    private static final int BUFFER_LIM = 1 << 20;
+    // 默认的段大小，以及段大小的下限，须放得下最大的一条日志
+    public static final int SEGMENT_SIZE = 1 << 24;
+    public static final int MIN_SEGMENT_SIZE = 1 << 18;
+    // 保留备用的旧段个数，新段优先由它们改名得到，不必重新分配空间
+    private static final int MAX_SPARES = 2;
 
     //size数据偏移量0，从0开始
     //sum偏移4格，在size后四个
@@ -36,90 +72,110 @@ public class LoggerImpl implements Logger {
     private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
     private static final int OF_DATA = OF_CHECKSUM + 4;
-    //不同imp必备
-    //感觉可以搞一个大的file父类？
-    //包括file处理三件套和file后缀
+
+    // 控制文件结构
+    private static final int OF_CTL_FORMAT = 0;
+    private static final int OF_CTL_SEGMENT_SIZE = OF_CTL_FORMAT + 4;
+    private static final int OF_CTL_FIRST = OF_CTL_SEGMENT_SIZE + 4;
+    static final int CTL_SIZE = OF_CTL_FIRST + 8;
+
     public static final String LOG_SUFFIX = ".log";
-    //文件imp必备三件套
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock lock;
+    private static final String SPARE_SUFFIX = ".spare";
+
+    private String path;
+    private int segmentSize;
+    private long firstSegment;
 
+    // 以下由segLock保护
+    private Lock segLock;
+    private Map<Long, FileChannel> segments;    // 已打开的段
+
+    private Lock lock;
     private long position;  // 当前日志指针的位置 //服务于internNext，记录到哪里了
-    private long fileSize;  // 初始化时记录，log操作不更新 
-    private int xChecksum;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
-    }
+    // 以下由lock保护，服务于组提交
+    private ByteArrayOutputStream pending;  // 还没写出的日志
+    private long appended;                  // 已追加日志的结束位置，包括pending，即最新的LSN
+    private long flushed;                   // 已落盘日志的结束位置
+    private boolean flushing;               // 是否已有leader在写出
+    private Condition flushDone;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
+    LoggerImpl(String path, int segmentSize, long firstSegment) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        this.firstSegment = firstSegment;
+        segLock = new ReentrantLock();
+        segments = new TreeMap<>();
         lock = new ReentrantLock();
+        pending = new ByteArrayOutputStream();
+        flushDone = lock.newCondition();
     }
 
-    //init完成size和checksum且移除tail
-    void init() {
-        long size = 0;
+    // 读出控制文件，格式不符时panic
+    static LoggerImpl load(String path) {
+        byte[] raw = null;
         try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e); 
+            raw = Files.readAllBytes(new File(path+LOG_SUFFIX).toPath());
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        //旧格式的日志是单个文件，以全局校验和或格式标记开头，无法按分段读
+        if(raw.length != CTL_SIZE || Parser.parseInt(Arrays.copyOfRange(raw, OF_CTL_FORMAT, OF_CTL_SEGMENT_SIZE)) != LOG_FORMAT) {
+            Panic.panic(Error.BadLogFileException);
         }
-        if(size < 4) {
+        int segmentSize = Parser.parseInt(Arrays.copyOfRange(raw, OF_CTL_SEGMENT_SIZE, OF_CTL_FIRST));
+        if(segmentSize < MIN_SEGMENT_SIZE) {
             Panic.panic(Error.BadLogFileException);
         }
+        long first = Parser.parseLong(Arrays.copyOfRange(raw, OF_CTL_FIRST, CTL_SIZE));
+        return new LoggerImpl(path, segmentSize, first);
+    }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
+    // 写出控制文件
+    void writeControl() {
+        byte[] raw = Bytes.concat(Parser.int2Byte(LOG_FORMAT), Parser.int2Byte(segmentSize), Parser.long2Byte(firstSegment));
+        File file = new File(path+LOG_SUFFIX);
+        File tmp = new File(path+LOG_SUFFIX+".tmp");
+        try(FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(raw);
+            out.getFD().sync();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
         try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
+    }
+
+    //init清理不再需要的段且移除tail
+    void init() {
+        //删除或回收途中崩溃时，控制文件已经更新，剩下的旧段直接删掉
+        for(long seg : listSegments()) {
+            if(seg < firstSegment) {
+                segmentFile(seg).delete();
+            }
+        }
         //检查结尾是否有坏记号
         checkAndRemoveTail();
     }
 
     // 检查并移除bad tail
     private void checkAndRemoveTail() {
-        //这里的意思是只保留xchecksum，后面数据不要了吗？
-        //在调用做check的时候position已经移动到有效log的末尾了
-        //偏移4节，xsum
         rewind();
 
-        int xCheck = 0;
-        while(true) {
-            //用log遍历
-            byte[] log = internNext();
-            if(log == null) break;
-            //每次循环都做xcheck
-            xCheck = calChecksum(xCheck, log);
+        //逐条校验，停在第一条不合法的日志处
+        while(internNext() != null) {
         }
-        //检查
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
-        }
-        
-        //截断到读到的末尾
+
+        //截断到读到的末尾，之后的日志从这里追加
         try {
             truncate(position);
         } catch (Exception e) {
             Panic.panic(e);
         }
-        //文件光标也放到有效末尾
-        try {
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        appended = flushed = position;
         rewind();
     }
 
@@ -130,92 +186,313 @@ public class LoggerImpl implements Logger {
         return xCheck;
     }
 
+    // 把日志的起始位置混入校验和
+    private static int mixPosition(int checksum, long start) {
+        return checksum ^ ((int)(start ^ (start >>> 32)) * 0x9E3779B9);
+    }
 
-    //写入单一log
+    //追加单一log，返回其LSN，不等待落盘
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        //传回的数据有，checksum，size，data
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public long log(byte[] data) {
+        //对数据的校验在锁外算好，锁内只混入位置
+        int checksum = calChecksum(CHECKSUM_INIT, data);
+        int length = OF_DATA + data.length;
+        if(length > segmentSize) {
+            Panic.panic(Error.DataTooLargeException);
+        }
+        long lsn;
+        boolean full;
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+            long start = appended;
+            int offset = (int)(start % segmentSize);
+            if(offset + length > segmentSize) {
+                //本段放不下，补0到段尾，从下一段开头写
+                int pad = segmentSize - offset;
+                pending.write(new byte[pad], 0, pad);
+                start += pad;
+            }
+            //追加顺序即写出顺序
+            byte[] head = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(mixPosition(checksum, start)));
+            pending.write(head, 0, head.length);
+            pending.write(data, 0, data.length);
+            appended = start + length;
+            lsn = appended;
+            full = pending.size() >= BUFFER_LIM;
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
+        //flush写盘时要完全放开lock，不能在持锁时调用
+        if(full) {
+            flush(lsn);
+        }
+        return lsn;
     }
 
-    private void updateXChecksum(byte[] log) {
-        //原sum基础上加new log
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public void flush(long lsn) {
+        lock.lock();
         try {
-            //从0开始写四位
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false);
-        } catch(IOException e) {
-            Panic.panic(e);
+            while(flushed < lsn) {
+                if(flushing) {
+                    flushDone.awaitUninterruptibly();
+                } else {
+                    flushPending();
+                }
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    private byte[] wrapLog(byte[] data) {
-        //checksum转为byte数组存
-        //size也是
-        //联合发送
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    // 作为leader写出当前缓冲中的所有日志，调用方持有lock，写盘期间释放
+    private void flushPending() {
+        byte[] batch = pending.toByteArray();
+        pending.reset();
+        long end = appended;
+        flushing = true;
+        lock.unlock();
+        try {
+            //按段切开，每段一次顺序写出，写完一段force一次
+            long from = end - batch.length;
+            int done = 0;
+            while(done < batch.length) {
+                long start = from + done;
+                int offset = (int)(start % segmentSize);
+                int n = Math.min(batch.length - done, segmentSize - offset);
+                FileChannel fc = segment(start / segmentSize, true);
+                ByteBuffer buf = ByteBuffer.wrap(batch, done, n);
+                while(buf.hasRemaining()) {
+                    fc.write(buf, offset + buf.position() - done);
+                }
+                fc.force(false);
+                done += n;
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        } finally {
+            lock.lock();
+            flushing = false;
+            flushed = end;
+            flushDone.signalAll();
+        }
     }
 
+    // 截断到x，x所在的段截到段内偏移，之后的段删除
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
+        segLock.lock();
         try {
-            fc.truncate(x);
+            long seg = x / segmentSize;
+            FileChannel fc = segment(seg, false);
+            if(fc != null) {
+                fc.truncate(x % segmentSize);
+            }
+            for(long s : listSegments()) {
+                if(s > seg) {
+                    closeSegment(s);
+                    segmentFile(s).delete();
+                }
+            }
+            appended = Math.min(appended, x);
+            flushed = Math.min(flushed, x);
         } finally {
+            segLock.unlock();
             lock.unlock();
         }
     }
 
-    private byte[] internNext() {
-        //检查理论data存放位置是否已经是文件尽头
-        if(position + OF_DATA >= fileSize) {
-            return null;
+    @Override
+    public long start() {
+        segLock.lock();
+        try {
+            return firstSegment * segmentSize;
+        } finally {
+            segLock.unlock();
         }
-        //读取4位
-        //size
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+    }
+
+    // 先更新控制文件再处理旧段，中途崩溃时打开会删掉剩下的旧段
+    @Override
+    public void removeBefore(long lsn) {
+        segLock.lock();
         try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch(IOException e) {
-            Panic.panic(e);
+            long seg = lsn / segmentSize;
+            if(seg <= firstSegment) {
+                return;
+            }
+            long old = firstSegment;
+            firstSegment = seg;
+            writeControl();
+            for(long s = old; s < seg; s ++) {
+                closeSegment(s);
+                File f = segmentFile(s);
+                if(f.exists() && !recycle(f)) {
+                    f.delete();
+                }
+            }
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    // 旧段留作备用，备用已满时返回false
+    private boolean recycle(File f) {
+        for(int i = 0; i < MAX_SPARES; i ++) {
+            File spare = spareFile(i);
+            if(!spare.exists()) {
+                return f.renameTo(spare);
+            }
+        }
+        return false;
+    }
+
+    // 取段的文件，不存在时create为true则新建，优先用备用的旧段改名
+    private FileChannel segment(long seg, boolean create) {
+        segLock.lock();
+        try {
+            FileChannel fc = segments.get(seg);
+            if(fc != null) {
+                return fc;
+            }
+            File f = segmentFile(seg);
+            if(!f.exists()) {
+                if(!create) {
+                    return null;
+                }
+                for(int i = 0; i < MAX_SPARES; i ++) {
+                    File spare = spareFile(i);
+                    if(spare.exists() && spare.renameTo(f)) {
+                        break;
+                    }
+                }
+            }
+            try {
+                fc = new RandomAccessFile(f, "rw").getChannel();
+            } catch(IOException e) {
+                Panic.panic(e);
+            }
+            segments.put(seg, fc);
+            return fc;
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    private void closeSegment(long seg) {
+        FileChannel fc = segments.remove(seg);
+        if(fc != null) {
+            try {
+                fc.close();
+            } catch(IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private File segmentFile(long seg) {
+        return new File(path+LOG_SUFFIX+"."+seg);
+    }
+
+    private File spareFile(int i) {
+        return new File(path+LOG_SUFFIX+SPARE_SUFFIX+i);
+    }
+
+    // 目录中存在的段号，升序
+    private List<Long> listSegments() {
+        return listSegments(path);
+    }
+
+    static List<Long> listSegments(String path) {
+        File log = new File(path+LOG_SUFFIX);
+        File dir = log.getAbsoluteFile().getParentFile();
+        String prefix = log.getName()+".";
+        List<Long> segs = new ArrayList<>();
+        String[] names = dir.list();
+        if(names == null) {
+            return segs;
+        }
+        for(String name : names) {
+            if(name.startsWith(prefix) && name.length() > prefix.length() && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                segs.add(Long.parseLong(name.substring(prefix.length())));
+            }
         }
-        int size = Parser.parseInt(tmp.array());
-        //检查理论文件长度是否大于现实长
-        if(position + size + OF_DATA > fileSize) {
+        Collections.sort(segs);
+        return segs;
+    }
+
+    // 新建日志时调用，删除同名的旧段和备用段
+    static void removeFiles(String path) {
+        for(long seg : listSegments(path)) {
+            new File(path+LOG_SUFFIX+"."+seg).delete();
+        }
+        for(int i = 0; i < MAX_SPARES; i ++) {
+            new File(path+LOG_SUFFIX+SPARE_SUFFIX+i).delete();
+        }
+    }
+
+    // 读出start处的日志，不存在或不合法时返回null
+    private byte[] readAt(long start) {
+        int offset = (int)(start % segmentSize);
+        if(offset + OF_DATA > segmentSize) {
+            return null;
+        }
+        FileChannel fc = segment(start / segmentSize, false);
+        if(fc == null) {
+            return null;
+        }
+        ByteBuffer head = ByteBuffer.allocate(OF_DATA);
+        if(!readFully(fc, head, offset)) {
+            return null;
+        }
+        int size = Parser.parseInt(Arrays.copyOfRange(head.array(), OF_SIZE, OF_CHECKSUM));
+        //检查理论长度是否超出段尾
+        if(size <= 0 || offset + OF_DATA + size > segmentSize) {
             return null;
         }
         //完整读取log
         ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
-        try {
-            fc.position(position);
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+        if(!readFully(fc, buf, offset)) {
+            return null;
         }
-
         byte[] log = buf.array();
         //人工sum和记录sum
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
+        int checkSum1 = mixPosition(calChecksum(CHECKSUM_INIT, Arrays.copyOfRange(log, OF_DATA, log.length)), start);
         int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
         if(checkSum1 != checkSum2) {
             return null;
         }
+        return log;
+    }
+
+    // 读满buf，文件提前结束时返回false
+    private boolean readFully(FileChannel fc, ByteBuffer buf, long offset) {
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    return false;
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        return true;
+    }
+
+    private byte[] internNext() {
+        byte[] log = readAt(position);
+        if(log == null && position % segmentSize != 0) {
+            //可能是段尾补0的部分，下一段开头合法时接着读
+            long next = (position / segmentSize + 1) * segmentSize;
+            log = readAt(next);
+            if(log != null) {
+                position = next;
+            }
+        }
+        if(log == null) {
+            return null;
+        }
         //读完光标后移
         position += log.length;
         return log;
@@ -237,17 +514,36 @@ public class LoggerImpl implements Logger {
 
     @Override
     public void rewind() {
-        position = 4;
+        position = start();
+    }
+
+    @Override
+    public void rewind(long position) {
+        this.position = Math.max(position, start());
+    }
+
+    @Override
+    public long length() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void close() {
+        //缓冲中剩下的日志先落盘
+        flush(length());
+        segLock.lock();
         try {
-            fc.close();
-            file.close();
-        } catch(IOException e) {
-            Panic.panic(e);
+            for(long seg : new ArrayList<>(segments.keySet())) {
+                closeSegment(seg);
+            }
+        } finally {
+            segLock.unlock();
         }
     }
-    
+
 }
@@ -9,4 +9,17 @@ public interface Page {
     boolean isDirty();
     int getPageNumber();
     byte[] getData();
+    //页面数据在getData()返回的数组中的起始位置
+    int getOffset();
+    //页面大小，由所在数据库决定
+    int getSize();
+    //最近一次修改该页的日志的LSN，写回页面前日志须已落盘到这里
+    long getLsn();
+    //只会增大，并发修改同一页时保留较大的LSN
+    void setLsn(long lsn);
+    //dataitem不持页锁原地修改时，从before到after之间为进行中，后台写线程不写出修改到一半的页面
+    void beginUpdate();
+    void endUpdate();
+    //是否有进行中的原地修改，调用方持有页锁
+    boolean isUpdating();
 }
@@ -1,5 +1,7 @@
 package top.guoziyang.mydb.backend.dm.page;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -8,17 +10,30 @@ import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 public class PageImpl implements Page {
     private int pageNumber;
     private byte[] data;
-    private boolean dirty;
+    private int offset;
+    private int size;
+    private AtomicBoolean dirty;
+    private AtomicLong lsn;             // 只在内存中，从文件读入的页已与日志一致，从0开始
     private Lock lock;
+    private int updating;               // 进行中的原地修改数，由页锁保护
     
     private PageCache pc;
 //构造函数需要所在number，data，cache的引用
 //且新建锁
 //dirty默认false即可
     public PageImpl(int pageNumber, byte[] data, PageCache pc) {
+        this(pageNumber, data, 0, data.length, pc);
+    }
+
+    //页面数据位于data的[offset, offset+size)
+    public PageImpl(int pageNumber, byte[] data, int offset, int size, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
+        this.offset = offset;
+        this.size = size;
         this.pc = pc;
+        this.dirty = new AtomicBoolean(false);
+        this.lsn = new AtomicLong(0);
         lock = new ReentrantLock();
     }
 //实现interface
@@ -36,12 +51,26 @@ public class PageImpl implements Page {
         //release page调用release pc
     }
 
+    //标脏应在修改数据之后，后台写线程先清除标记再写出数据，
+    //这样写出之后完成的修改一定会再次标脏，不会丢失
     public void setDirty(boolean dirty) {
-        this.dirty = dirty;
+        if(!dirty) {
+            this.dirty.set(false);
+            return;
+        }
+        if(!this.dirty.getAndSet(true) && pc != null) {
+            //由干净变脏时登记到cache的脏页集合
+            pc.markDirty(this);
+        }
+    }
+
+    //清除脏标记，返回清除前是否为脏
+    public boolean clearDirty() {
+        return dirty.getAndSet(false);
     }
 
     public boolean isDirty() {
-        return dirty;
+        return dirty.get();
     }
 
     public int getPageNumber() {
@@ -52,4 +81,42 @@ public class PageImpl implements Page {
         return data;
     }
 
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getLsn() {
+        return lsn.get();
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn.accumulateAndGet(lsn, Math::max);
+    }
+
+    public void beginUpdate() {
+        lock.lock();
+        try {
+            updating ++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void endUpdate() {
+        lock.lock();
+        try {
+            updating --;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isUpdating() {
+        return updating > 0;
+    }
+
 }
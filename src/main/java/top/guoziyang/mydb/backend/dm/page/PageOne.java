@@ -3,58 +3,97 @@ package top.guoziyang.mydb.backend.dm.page;
 import java.util.Arrays;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
 
 /**
  * 特殊管理第一页
+ * PageCount
+ * 0~3字节记录正常关闭时已使用的页数，文件按extent预先扩展，长度不代表页数
+ * PageSize
+ * 4~7字节记录创建时选定的页大小，打开文件时先读这里才知道如何划分页
+ * PageFormat
+ * 8~11字节记录普通页的格式版本，旧的追加式格式为0，不能按槽解析
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
  */
 public class PageOne {
+    private static final int OF_PAGE_COUNT = 0;
+    private static final int OF_PAGE_SIZE = 4;
+    private static final int OF_PAGE_FORMAT = 8;
+    // 普通页采用槽式结构
+    public static final int PAGE_FORMAT = 1;
+    // 打开文件时需要先读出的头部长度
+    public static final int HEAD_SIZE = 8;
     //偏移量
     private static final int OF_VC = 100;
     //验证码长度
     private static final int LEN_VC = 8;
 
-    public static byte[] InitRaw() {
+    public static byte[] InitRaw(int pageSize) {
         //获取初始raw
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setVcOpen(raw);
+        byte[] raw = new byte[pageSize];
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
+        System.arraycopy(Parser.int2Byte(PAGE_FORMAT), 0, raw, OF_PAGE_FORMAT, 4);
+        setVcOpen(raw, 0);
         return raw;
     }
 
     //传入page
     //一般是第一页
     public static void setVcOpen(Page pg) {
-        pg.setDirty(true);
         //getData返回的是所有数据的一个byte【】
         //长度pagesize
-        setVcOpen(pg.getData());
+        setVcOpen(pg.getData(), pg.getOffset());
+        pg.setDirty(true);
     }
 
-    private static void setVcOpen(byte[] raw) {
+    //base为页面在raw中的起始位置
+    private static void setVcOpen(byte[] raw, int base) {
         //被copy数组，被copy起始位置，copy到数组，copy到起始位置，copy长度
-        System.arraycopy(RandomUtil.randomBytes(LEN_VC), 0, raw, OF_VC, LEN_VC);
+        System.arraycopy(RandomUtil.randomBytes(LEN_VC), 0, raw, base+OF_VC, LEN_VC);
     }
 
     public static void setVcClose(Page pg) {
+        setVcClose(pg.getData(), pg.getOffset());
         pg.setDirty(true);
-        setVcClose(pg.getData());
     }
 
-    private static void setVcClose(byte[] raw) {
-        System.arraycopy(raw, OF_VC, raw, OF_VC+LEN_VC, LEN_VC);
+    private static void setVcClose(byte[] raw, int base) {
+        System.arraycopy(raw, base+OF_VC, raw, base+OF_VC+LEN_VC, LEN_VC);
+    }
+
+    public static void setPageCount(Page pg, int count) {
+        System.arraycopy(Parser.int2Byte(count), 0, pg.getData(), pg.getOffset()+OF_PAGE_COUNT, 4);
+        pg.setDirty(true);
+    }
+
+    // 返回0说明文件由未记录页数的版本创建
+    public static int getPageCount(Page pg) {
+        int base = pg.getOffset() + OF_PAGE_COUNT;
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), base, base+4));
+    }
+
+    // 从文件头部解析页大小，为0说明文件由页大小固定的版本创建
+    public static int parsePageSize(byte[] head) {
+        int pageSize = Parser.parseInt(Arrays.copyOfRange(head, OF_PAGE_SIZE, OF_PAGE_SIZE+4));
+        return pageSize == 0 ? PageCache.PAGE_SIZE : pageSize;
+    }
+
+    public static int getPageFormat(Page pg) {
+        int base = pg.getOffset() + OF_PAGE_FORMAT;
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), base, base+4));
     }
 
     public static boolean checkVc(Page pg) {
-        return checkVc(pg.getData());
+        return checkVc(pg.getData(), pg.getOffset());
     }
 
-    private static boolean checkVc(byte[] raw) {
+    private static boolean checkVc(byte[] raw, int base) {
         //判断ofvc到ofvc+len即开局验证码
         //以及ofvc+len到ofvc+2len即结束验证码
         //是否相等
-        return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
+        return Arrays.equals(raw, base+OF_VC, base+OF_VC+LEN_VC, raw, base+OF_VC+LEN_VC, base+OF_VC+2*LEN_VC);
     }
 }
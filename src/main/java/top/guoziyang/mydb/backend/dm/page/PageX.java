@@ -1,79 +1,241 @@
 package top.guoziyang.mydb.backend.dm.page;
 
 import java.util.Arrays;
+import java.util.List;
 
-import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
-import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.common.Error;
 
 /**
  * PageX管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * [SlotCount] [FreeOffset] [FragSize] [Slot0] [Slot1] ... 空闲 ... [Data]
+ * SlotCount: 2字节 槽的个数，槽目录从页头向后增长
+ * FreeOffset: 2字节 数据区的起点，数据从页尾向前增长
+ * FragSize: 2字节 已回收但还未整理的数据大小
+ * Slot: 4字节 [Offset][Length]，数据在页内的偏移和长度，Offset为0表示该槽已回收
+ *
+ * uid中记录槽号，整理页面只移动数据、改写槽，槽号不变
+ * 回收的槽号不再复用，指向它的旧uid只会读到非法的数据
+ * 偏移只有16位，按无符号数解释，64KB的页最后一个字节用不到
  */
 public class PageX {
-    
-    private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
-
-    public static byte[] initRaw() {
-        //初始化，前两位填short数值2转为byte之后取前两位
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+
+    private static final int OF_SLOT_COUNT = 0;
+    private static final int OF_FREE = 2;
+    private static final int OF_FRAG = 4;
+    private static final int OF_SLOTS = 6;
+    private static final int SLOT_SIZE = 4;
+    private static final int MAX_END = 0xFFFF;
+
+    // 页大小为pageSize时一页能放下的最大数据
+    public static int maxFreeSpace(int pageSize) {
+        return dataEnd(pageSize) - OF_SLOTS - SLOT_SIZE;
+    }
+
+    private static int dataEnd(int pageSize) {
+        return Math.min(pageSize, MAX_END);
+    }
+
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
+        setShort(raw, OF_FREE, dataEnd(pageSize));
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    // 按大端直接读写两字节，读数据的每一步都会查槽，不能有分配
+    private static int getShort(byte[] raw, int pos) {
+        return ((raw[pos] & 0xFF) << 8) | (raw[pos+1] & 0xFF);
     }
 
-    // 获取pg的FSO
-    public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+    private static void setShort(byte[] raw, int pos, int value) {
+        raw[pos] = (byte)(value >>> 8);
+        raw[pos+1] = (byte)value;
     }
 
-    private static short getFSO(byte[] raw) {
-        //返回一个short数据
-        //pagedata的前两位
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    // 以下的页内偏移都相对于页面在data中的起始位置base
+    private static int slotPos(int base, int slot) {
+        return base + OF_SLOTS + slot*SLOT_SIZE;
     }
 
-    // 将raw插入pg中，返回插入位置
-    public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);
-        //从data取出两位offset
-        //表示当前光标
-        short offset = getFSO(pg.getData());
-        //因此从offset开始insert
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        //设置新光标，把前两位写成新长度
-        //off+new
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
-    }
-
-    // 获取页面的空闲空间大小
+    public static int getSlotCount(Page pg) {
+        return getShort(pg.getData(), pg.getOffset()+OF_SLOT_COUNT);
+    }
+
+    // 槽中数据的页内偏移，槽不存在或已回收时返回0
+    public static int getItemOffset(Page pg, int slot) {
+        if(slot >= getSlotCount(pg)) {
+            return 0;
+        }
+        return getShort(pg.getData(), slotPos(pg.getOffset(), slot));
+    }
+
+    public static int getItemLength(Page pg, int slot) {
+        return getShort(pg.getData(), slotPos(pg.getOffset(), slot)+2);
+    }
+
+    // 槽目录之后、数据区之前的连续空间
+    private static int getGap(Page pg) {
+        int base = pg.getOffset();
+        return getShort(pg.getData(), base+OF_FREE) - OF_SLOTS - getSlotCount(pg)*SLOT_SIZE;
+    }
+
+    // 获取页面的空闲空间大小，包括整理后才能用上的部分，已扣除新槽占用的空间
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        int free = getGap(pg) + getShort(pg.getData(), pg.getOffset()+OF_FRAG) - SLOT_SIZE;
+        return Math.max(free, 0);
+    }
+
+    // 不整理页面即可放下的空间
+    public static int getContiguousFreeSpace(Page pg) {
+        return Math.max(getGap(pg) - SLOT_SIZE, 0);
     }
 
-    // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
-    //就是指定index的覆盖性插入
-    //插入完检查一下光标位置，当然是最大的那个
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    // 不整理页面能否放下长度为length的数据
+    public static boolean fits(Page pg, int length) {
+        return getGap(pg) >= length + SLOT_SIZE;
+    }
+
+    // 不整理页面时，从raws[from]开始连续能放下几个
+    public static int fitCount(Page pg, List<byte[]> raws, int from) {
+        int gap = getGap(pg);
+        int n = 0;
+        while(from+n < raws.size() && gap >= raws.get(from+n).length + SLOT_SIZE) {
+            gap -= raws.get(from+n).length + SLOT_SIZE;
+            n ++;
+        }
+        return n;
+    }
+
+    // 下一次插入将使用的槽号
+    public static int nextSlot(Page pg) {
+        return getSlotCount(pg);
+    }
+
+    // 将raw插入pg中，返回使用的槽号，调用方保证fits
+    public static int insert(Page pg, byte[] raw) {
+        int slot = getSlotCount(pg);
+        setSlotCount(pg, slot+1);
+        place(pg, slot, raw);
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        return slot;
+    }
+
+    private static void setSlotCount(Page pg, int count) {
+        byte[] data = pg.getData();
+        int base = pg.getOffset();
+        for(int i = getSlotCount(pg); i < count; i ++) {
+            Arrays.fill(data, slotPos(base, i), slotPos(base, i)+SLOT_SIZE, (byte)0);
+        }
+        setShort(data, base+OF_SLOT_COUNT, count);
+    }
+
+    // 在数据区前端为slot分配空间并写入raw
+    private static void place(Page pg, int slot, byte[] raw) {
+        byte[] data = pg.getData();
+        int base = pg.getOffset();
+        int offset = getShort(data, base+OF_FREE) - raw.length;
+        System.arraycopy(raw, 0, data, base+offset, raw.length);
+        setShort(data, base+OF_FREE, offset);
+        setShort(data, slotPos(base, slot), offset);
+        setShort(data, slotPos(base, slot)+2, raw.length);
+    }
 
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+    // 回收slot中的数据，空间留待整理时收回
+    public static void free(Page pg, int slot) {
+        int offset = getItemOffset(pg, slot);
+        if(offset == 0) {
+            return;
         }
+        byte[] data = pg.getData();
+        int base = pg.getOffset();
+        int frag = getShort(data, base+OF_FRAG) + getItemLength(pg, slot);
+        setShort(data, base+OF_FRAG, frag);
+        setShort(data, slotPos(base, slot), 0);
+        setShort(data, slotPos(base, slot)+2, 0);
+        pg.setDirty(true);
     }
 
-    // 将raw插入pg中的offset位置，不更新update
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    /**
+     * 整理页面：把所有数据按偏移从大到小依次紧贴页尾，收回已回收数据的空间
+     * 移动数据会使指向页内的引用失效，调用方须保证没有其他线程持有该页上的数据
+     */
+    public static void compact(Page pg) {
+        byte[] data = pg.getData();
+        int base = pg.getOffset();
+        if(getShort(data, base+OF_FRAG) == 0) {
+            return;
+        }
+        int count = getSlotCount(pg);
+        // 按偏移从大到小处理，数据只会向页尾移动，不会覆盖尚未移动的数据
+        Integer[] slots = new Integer[count];
+        int n = 0;
+        for(int i = 0; i < count; i ++) {
+            if(getItemOffset(pg, i) != 0) {
+                slots[n ++] = i;
+            }
+        }
+        Arrays.sort(slots, 0, n, (a, b) -> getItemOffset(pg, b) - getItemOffset(pg, a));
+        int end = dataEnd(pg.getSize());
+        for(int i = 0; i < n; i ++) {
+            int slot = slots[i];
+            int offset = getItemOffset(pg, slot);
+            int length = getItemLength(pg, slot);
+            end -= length;
+            if(end != offset) {
+                System.arraycopy(data, base+offset, data, base+end, length);
+                setShort(data, slotPos(base, slot), end);
+            }
+        }
+        setShort(data, base+OF_FREE, end);
+        setShort(data, base+OF_FRAG, 0);
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+    }
+
+    // 将raw放入pg的slot中，槽目录不够长时补齐，已有长度相同的数据时原地覆盖
+    // 恢复时按日志顺序重放，只依赖槽号，与页面当时的布局无关
+    public static void recoverInsert(Page pg, byte[] raw, int slot) {
+        //新建后还没写到文件就崩溃的页全为0，数据区起点不可能为0
+        if(getShort(pg.getData(), pg.getOffset()+OF_FREE) == 0) {
+            setShort(pg.getData(), pg.getOffset()+OF_FREE, dataEnd(pg.getSize()));
+        }
+        //槽号不复用，槽存在却为空说明之后已被回收，不再放回
+        if(slot < getSlotCount(pg) && getItemOffset(pg, slot) == 0) {
+            return;
+        }
+        if(slot >= getSlotCount(pg)) {
+            int need = (slot + 1 - getSlotCount(pg)) * SLOT_SIZE;
+            if(getGap(pg) < need) {
+                compact(pg);
+                if(getGap(pg) < need) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+            }
+            setSlotCount(pg, slot+1);
+        }
+        int offset = getItemOffset(pg, slot);
+        if(offset != 0 && getItemLength(pg, slot) == raw.length) {
+            System.arraycopy(raw, 0, pg.getData(), pg.getOffset()+offset, raw.length);
+            pg.setDirty(true);
+            return;
+        }
+        free(pg, slot);
+        if(getGap(pg) < raw.length) {
+            compact(pg);
+            if(getGap(pg) < raw.length) {
+                Panic.panic(Error.BadLogFileException);
+            }
+        }
+        place(pg, slot, raw);
+        pg.setDirty(true);
+    }
+
+    // 将raw写入pg的slot中，数据长度不变
+    public static void recoverUpdate(Page pg, byte[] raw, int slot) {
+        recoverInsert(pg, raw, slot);
+    }
+
+    public static void recoverFree(Page pg, int slot) {
+        free(pg, slot);
     }
 }
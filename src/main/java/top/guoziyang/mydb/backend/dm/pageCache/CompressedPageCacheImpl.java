@@ -0,0 +1,378 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 页面压缩存放的PageCache，缓存中仍是完整的页，只在读写文件时解压、压缩
+ *
+ * .db文件按SECTOR划分，每页压缩后占若干连续扇区，页号到位置的映射存放在同名的.pmap文件
+ * .pmap结构
+ * [PageSize] 4字节
+ * [Offset][Length] 每页12字节，按页号排列，Length为0表示该页未写过，等于PageSize表示未压缩
+ *
+ * 页面总是写到新的扇区，不覆盖旧数据；映射只在sync时、数据force之后写出，
+ * 旧扇区等新映射落盘后才能复用，崩溃时磁盘上的映射总指向一份完整的旧页或新页
+ */
+public class CompressedPageCacheImpl extends PageCacheImpl {
+    public static final String MAP_SUFFIX = ".pmap";
+
+    private static final int SECTOR = 512;
+    private static final int MAP_HEADER = 4;
+    private static final int ENTRY_SIZE = 12;
+
+    private static final ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[MAX_PAGE_SIZE]);
+
+    private RandomAccessFile mapFile;
+    private FileChannel mapFc;
+
+    private Lock mapLock;                               // 保护以下映射和空间分配的状态
+    private long[] offsets;                             // 页号 -> 在.db中的位置
+    private int[] lengths;                              // 页号 -> 压缩后的长度
+    private Set<Integer> dirtyEntries;                  // 尚未写到.pmap的映射
+    private TreeMap<Integer, ArrayDeque<Long>> free;    // 扇区数 -> 可复用的空闲位置
+    private List<long[]> pending;                       // 被替换的旧位置，映射落盘后才可复用
+    private long end;                                   // .db中已分配空间的末尾
+    private long storedBytes;                           // 已写页面占用的空间
+    private int storedPages;
+
+    private Lock syncLock;
+
+    CompressedPageCacheImpl(RandomAccessFile file, FileChannel fileChannel, RandomAccessFile mapFile,
+                            int pageSize, int maxResource, PageCacheOptions opts) {
+        super(file, fileChannel, pageSize, maxResource, opts);
+        this.mapFile = mapFile;
+        this.mapFc = mapFile.getChannel();
+        this.mapLock = new ReentrantLock();
+        this.syncLock = new ReentrantLock();
+        this.dirtyEntries = new HashSet<>();
+        this.free = new TreeMap<>();
+        this.pending = new ArrayList<>();
+        loadMap();
+    }
+
+    // 新建时写入.pmap的头部
+    static void initMap(RandomAccessFile mapFile, int pageSize) {
+        try {
+            mapFile.getChannel().write(ByteBuffer.wrap(Parser.int2Byte(pageSize)), 0);
+            mapFile.getChannel().force(false);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 打开时从.pmap的头部读出页大小
+    static int parseMapPageSize(RandomAccessFile mapFile) {
+        byte[] head = new byte[MAP_HEADER];
+        try {
+            mapFile.seek(0);
+            mapFile.readFully(head);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        return Parser.parseInt(head);
+    }
+
+    // 读入映射，页数以映射为准，映射之间的空隙作为空闲空间
+    private void loadMap() {
+        int pages = 0;
+        byte[] raw = null;
+        try {
+            long length = mapFile.length();
+            if(length < MAP_HEADER || parseMapPageSize(mapFile) != pageSize) {
+                Panic.panic(Error.BadPageMapException);
+            }
+            pages = (int)((length - MAP_HEADER) / ENTRY_SIZE);
+            raw = new byte[pages * ENTRY_SIZE];
+            mapFile.readFully(raw);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        offsets = new long[pages + 1];
+        lengths = new int[pages + 1];
+        TreeMap<Long, Integer> used = new TreeMap<>();
+        for(int pgno = 1; pgno <= pages; pgno ++) {
+            int pos = (pgno - 1) * ENTRY_SIZE;
+            offsets[pgno] = Parser.parseLong(Arrays.copyOfRange(raw, pos, pos + 8));
+            lengths[pgno] = Parser.parseInt(Arrays.copyOfRange(raw, pos + 8, pos + 12));
+            if(lengths[pgno] > 0) {
+                used.put(offsets[pgno], sectors(lengths[pgno]));
+                storedBytes += (long)sectors(lengths[pgno]) * SECTOR;
+                storedPages ++;
+            }
+        }
+        for(Map.Entry<Long, Integer> e : used.entrySet()) {
+            if(e.getKey() > end) {
+                addFree(end, (int)((e.getKey() - end) / SECTOR));
+            }
+            end = e.getKey() + (long)e.getValue() * SECTOR;
+        }
+        //基类按.db的长度算出的页数对压缩文件没有意义
+        pageNumbers.set(pages);
+    }
+
+    private static int sectors(int length) {
+        return (length + SECTOR - 1) / SECTOR;
+    }
+
+    private void addFree(long offset, int count) {
+        free.computeIfAbsent(count, k -> new ArrayDeque<>()).push(offset);
+    }
+
+    // 分配count个连续扇区，优先复用能放下的最小空闲块，多余部分放回空闲
+    private long allocate(int count) {
+        Map.Entry<Integer, ArrayDeque<Long>> e = free.ceilingEntry(count);
+        if(e == null) {
+            long offset = end;
+            end += (long)count * SECTOR;
+            return offset;
+        }
+        long offset = e.getValue().pop();
+        if(e.getValue().isEmpty()) {
+            free.remove(e.getKey());
+        }
+        if(e.getKey() > count) {
+            addFree(offset + (long)count * SECTOR, e.getKey() - count);
+        }
+        return offset;
+    }
+
+    private void ensureCapacity(int pgno) {
+        if(pgno < offsets.length) {
+            return;
+        }
+        int capacity = Math.max(pgno + 1, offsets.length * 2);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+    }
+
+    @Override
+    protected void readPage(int pgno, byte[] data, int off) {
+        long offset;
+        int length;
+        mapLock.lock();
+        try {
+            offset = pgno < offsets.length ? offsets[pgno] : 0;
+            length = pgno < lengths.length ? lengths[pgno] : 0;
+        } finally {
+            mapLock.unlock();
+        }
+        if(length == 0) {
+            //未写过的页，复用的帧要清零
+            Arrays.fill(data, off, off + pageSize, (byte)0);
+            return;
+        }
+        if(length == pageSize) {
+            readFully(offset, data, off, pageSize);
+            return;
+        }
+        byte[] buf = buffer.get();
+        readFully(offset, buf, 0, length);
+        if(!PageCodec.decompress(buf, 0, length, data, off, pageSize)) {
+            Panic.panic(Error.CorruptedPageException);
+        }
+    }
+
+    private void readFully(long offset, byte[] data, int off, int length) {
+        ByteBuffer buf = ByteBuffer.wrap(data, off, length);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position() - off) < 0) {
+                    Panic.panic(Error.CorruptedPageException);
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    protected void writePage(int pgno, byte[] data, int off) {
+        //压缩后至少省下一个扇区才压缩存放
+        byte[] buf = buffer.get();
+        int length = PageCodec.compress(data, off, pageSize, buf, pageSize - SECTOR);
+        byte[] src = buf;
+        int srcOff = 0;
+        if(length < 0) {
+            src = data;
+            srcOff = off;
+            length = pageSize;
+        }
+
+        long offset;
+        mapLock.lock();
+        try {
+            offset = allocate(sectors(length));
+        } finally {
+            mapLock.unlock();
+        }
+        //先写数据，再改映射，读到新映射时数据已经写完
+        ByteBuffer bb = ByteBuffer.wrap(src, srcOff, length);
+        try {
+            while(bb.hasRemaining()) {
+                fc.write(bb, offset + bb.position() - srcOff);
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+
+        mapLock.lock();
+        try {
+            ensureCapacity(pgno);
+            if(lengths[pgno] > 0) {
+                pending.add(new long[] {offsets[pgno], sectors(lengths[pgno])});
+                storedBytes -= (long)sectors(lengths[pgno]) * SECTOR;
+                storedPages --;
+            }
+            offsets[pgno] = offset;
+            lengths[pgno] = length;
+            storedBytes += (long)sectors(length) * SECTOR;
+            storedPages ++;
+            dirtyEntries.add(pgno);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    protected void writePages(int firstPgno, byte[][] pages, int from, int to) {
+        for(int i = from; i < to; i ++) {
+            writePage(firstPgno + i - from, pages[i], 0);
+        }
+    }
+
+    // 数据落盘后写出映射，映射落盘后旧位置才能复用
+    @Override
+    protected void sync() {
+        syncLock.lock();
+        try {
+            List<Integer> pgnos;
+            List<long[]> released;
+            byte[] raw;
+            mapLock.lock();
+            try {
+                pgnos = new ArrayList<>(dirtyEntries);
+                dirtyEntries.clear();
+                released = pending;
+                pending = new ArrayList<>();
+                raw = new byte[pgnos.size() * ENTRY_SIZE];
+                for(int i = 0; i < pgnos.size(); i ++) {
+                    int pgno = pgnos.get(i);
+                    System.arraycopy(Parser.long2Byte(offsets[pgno]), 0, raw, i * ENTRY_SIZE, 8);
+                    System.arraycopy(Parser.int2Byte(lengths[pgno]), 0, raw, i * ENTRY_SIZE + 8, 4);
+                }
+            } finally {
+                mapLock.unlock();
+            }
+            super.sync();
+            for(int i = 0; i < pgnos.size(); i ++) {
+                writeMap(entryOffset(pgnos.get(i)), raw, i * ENTRY_SIZE, ENTRY_SIZE);
+            }
+            mapFc.force(false);
+            mapLock.lock();
+            try {
+                for(long[] slot : released) {
+                    addFree(slot[0], (int)slot[1]);
+                }
+            } finally {
+                mapLock.unlock();
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private static long entryOffset(int pgno) {
+        return MAP_HEADER + (long)(pgno - 1) * ENTRY_SIZE;
+    }
+
+    private void writeMap(long position, byte[] raw, int off, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(raw, off, length);
+        while(buf.hasRemaining()) {
+            mapFc.write(buf, position + buf.position() - off);
+        }
+    }
+
+    // 页号与.db的长度无关，预扩展无事可做
+    @Override
+    protected void extend(long from, long to) {
+    }
+
+    // 只保留前size/pageSize页，其余页的映射直接从.pmap截去
+    @Override
+    protected void setLength(long size) {
+        int keep = (int)(size / pageSize);
+        syncLock.lock();
+        try {
+            mapLock.lock();
+            try {
+                for(int pgno = keep + 1; pgno < lengths.length; pgno ++) {
+                    if(lengths[pgno] > 0) {
+                        pending.add(new long[] {offsets[pgno], sectors(lengths[pgno])});
+                        storedBytes -= (long)sectors(lengths[pgno]) * SECTOR;
+                        storedPages --;
+                        lengths[pgno] = 0;
+                    }
+                }
+                dirtyEntries.removeIf(pgno -> pgno > keep);
+            } finally {
+                mapLock.unlock();
+            }
+            mapFile.setLength(entryOffset(keep + 1));
+        } catch(IOException e) {
+            Panic.panic(e);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // 关闭时所有旧位置都已可复用，去掉.db末尾的空闲空间
+    @Override
+    protected void closeFile() {
+        try {
+            long used = 0;
+            for(int pgno = 1; pgno < lengths.length; pgno ++) {
+                if(lengths[pgno] > 0) {
+                    used = Math.max(used, offsets[pgno] + (long)sectors(lengths[pgno]) * SECTOR);
+                }
+            }
+            file.setLength(used);
+            mapFc.close();
+            mapFile.close();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        super.closeFile();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        mapLock.lock();
+        try {
+            if(storedBytes == 0) {
+                return 1;
+            }
+            return (double)storedPages * pageSize / storedBytes;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 页帧分配器
+ *
+ * 缓存中的页面不再各自持有一个byte[]，而是使用从大块slab切出的定长帧，
+ * 数千个页面对GC来说只是几十个大数组；帧在页面驱逐时归还，下一次加载直接复用
+ * 空闲帧用不了时才分配新的slab，稳定运行时不再分配内存
+ */
+class FrameArena {
+    // 每个slab的大小
+    private static final int SLAB_SIZE = 1 << 20;
+
+    private int frameSize;
+    private int framesPerSlab;
+    private Lock lock;
+    private Map<byte[], Integer> slabIndex;             // slab -> 编号，按引用比较
+    private byte[][] slabs;
+    private int slabCount;
+    private int[] free;                                 // 空闲帧编号组成的栈
+    private int freeTop;
+
+    FrameArena(int frameSize) {
+        this.frameSize = frameSize;
+        this.framesPerSlab = Math.max(1, SLAB_SIZE / frameSize);
+        this.lock = new ReentrantLock();
+        this.slabIndex = new IdentityHashMap<>();
+        this.slabs = new byte[4][];
+        this.free = new int[framesPerSlab * 4];
+    }
+
+    /**
+     * 分配一帧，返回帧编号，由slab(frame)和offset(frame)定位
+     * 复用的帧保留着上一个页面的数据，由调用方覆盖
+     */
+    int allocate() {
+        lock.lock();
+        try {
+            if(freeTop == 0) {
+                grow();
+            }
+            return free[-- freeTop];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 归还slab中offset处的帧
+    void free(byte[] slab, int offset) {
+        lock.lock();
+        try {
+            int frame = slabIndex.get(slab) * framesPerSlab + offset / frameSize;
+            free[freeTop ++] = frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    byte[] slab(int frame) {
+        lock.lock();
+        try {
+            return slabs[frame / framesPerSlab];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int offset(int frame) {
+        return (frame % framesPerSlab) * frameSize;
+    }
+
+    // 新增一个slab，其中的帧全部放入空闲栈，需持有锁
+    private void grow() {
+        if(slabCount == slabs.length) {
+            byte[][] ns = new byte[slabs.length * 2][];
+            System.arraycopy(slabs, 0, ns, 0, slabCount);
+            slabs = ns;
+            int[] nf = new int[framesPerSlab * slabs.length];
+            System.arraycopy(free, 0, nf, 0, freeTop);
+            free = nf;
+        }
+        byte[] slab = new byte[framesPerSlab * frameSize];
+        slabIndex.put(slab, slabCount);
+        slabs[slabCount] = slab;
+        // 倒序入栈，先分配到的是slab开头的帧
+        for(int i = framesPerSlab - 1; i >= 0; i --) {
+            free[freeTop ++] = slabCount * framesPerSlab + i;
+        }
+        slabCount ++;
+    }
+}
@@ -0,0 +1,128 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 以内存映射方式访问数据库文件的PageCache
+ *
+ * 文件按EXTENT_SIZE分段映射，访问到尚未映射的段时再映射，映射会把文件扩展到段尾，
+ * 和预扩展一样，正常关闭时截断回实际页数
+ * 读写页面只是内存拷贝，不需要系统调用；刷盘时只force写过的段
+ * 缓存、后台写回和脏页管理都沿用PageCacheImpl
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+    // 每段映射的大小，也是文件增长的步长
+    private static final int EXTENT_SIZE = 1 << 24;
+
+    private volatile MappedByteBuffer[] extents;        // 写时复制，读不加锁
+    private Lock mapLock;
+    private Set<Integer> unsynced;                      // 上次force之后写过的段
+
+    MappedPageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int pageSize, int maxResource, PageCacheOptions opts) {
+        super(file, fileChannel, pageSize, maxResource, opts);
+        this.extents = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+        this.unsynced = ConcurrentHashMap.newKeySet();
+    }
+
+    // 返回第idx段的映射，未映射时映射之
+    private MappedByteBuffer extent(int idx) {
+        MappedByteBuffer[] exts = extents;
+        if(idx < exts.length && exts[idx] != null) {
+            return exts[idx];
+        }
+        mapLock.lock();
+        try {
+            exts = extents;
+            if(idx < exts.length && exts[idx] != null) {
+                return exts[idx];
+            }
+            MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_WRITE, (long)idx * EXTENT_SIZE, EXTENT_SIZE);
+            exts = Arrays.copyOf(exts, Math.max(exts.length, idx + 1));
+            exts[idx] = buf;
+            extents = exts;
+            return buf;
+        } catch(IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    // 定位到页面所在位置的buffer，duplicate后各线程的position互不影响
+    private ByteBuffer locate(int pgno) {
+        long offset = pageOffset(pgno);
+        ByteBuffer buf = extent((int)(offset / EXTENT_SIZE)).duplicate();
+        buf.position((int)(offset % EXTENT_SIZE));
+        return buf;
+    }
+
+    @Override
+    protected void readPage(int pgno, byte[] data, int off) {
+        locate(pgno).get(data, off, pageSize);
+    }
+
+    @Override
+    protected void writePage(int pgno, byte[] data, int off) {
+        locate(pgno).put(data, off, pageSize);
+        //先写后登记，force时先移除再force，登记之后的写不会漏掉
+        unsynced.add((int)(pageOffset(pgno) / EXTENT_SIZE));
+    }
+
+    @Override
+    protected void writePages(int firstPgno, byte[][] pages, int from, int to) {
+        for(int i = from; i < to; i ++) {
+            writePage(firstPgno + i - from, pages[i], 0);
+        }
+    }
+
+    @Override
+    protected void sync() {
+        MappedByteBuffer[] exts = extents;
+        for(Integer idx : unsynced) {
+            unsynced.remove(idx);
+            if(idx < exts.length && exts[idx] != null) {
+                exts[idx].force();
+            }
+        }
+        //段映射会改变文件长度，长度也要落盘
+        super.sync();
+    }
+
+    @Override
+    protected void setLength(long size) {
+        mapLock.lock();
+        try {
+            super.setLength(size);
+            //超出新长度的段不能再访问，丢掉它们，之后用到时重新映射
+            int keep = (int)(size / EXTENT_SIZE);
+            MappedByteBuffer[] exts = extents;
+            if(keep < exts.length) {
+                for(int i = keep; i < exts.length; i ++) {
+                    unsynced.remove(i);
+                }
+                extents = Arrays.copyOf(exts, keep);
+            }
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    // 映射本身会扩展文件，只需改变长度，不用写零
+    @Override
+    protected void extend(long from, long to) {
+        setLength(to);
+    }
+}
@@ -2,17 +2,22 @@ package top.guoziyang.mydb.backend.dm.pageCache;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.common.Error;
 
 public interface PageCache {
     //pagecache是什么
-    //规定page的size
+    //默认的page size，每个数据库在create时可以另选，记录在PageOne里
     public static final int PAGE_SIZE = 1 << 13;
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 16;
     //要有new方法
     int newPage(byte[] initData);
     //要有get方法
@@ -21,13 +26,38 @@ public interface PageCache {
     void close();
     void release(Page page);
 
+    //页面由干净变脏时调用，登记给后台写线程
+    void markDirty(Page pg);
+
+    //提示该页很快会被访问，异步预读进缓存
+    void prefetch(int pgno);
+
+    //除调用方外是否还有其他持有者，页面整理前检查
+    boolean isShared(Page pg);
+
     void truncateByBgno(int maxPgno);
     int getPageNumber();
+    int getPageSize();
+    //页面压缩存放时返回原始大小与占用空间之比，不压缩时返回0
+    double getCompressionRatio();
     void flushPage(Page pg);
+    //写回调用时的所有脏页并刷盘，期间照常读写页面，检查点时调用
+    void flushDirtyPages();
+    //写回页面前按页面的LSN刷日志，未设置时不检查
+    void setLogger(Logger lg);
     //两个静态方法分别是打开和新建cache
     //返回一个cache实例
     //create Imp
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, new PageCacheOptions());
+    }
+
+    public static PageCacheImpl create(String path, long memory, PageCacheOptions opts) {
+        //页大小须是4KB到64KB之间的2的幂
+        int pageSize = opts.pageSize;
+        if(pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
         //new一个后缀为".db"的文件
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         //先检验是否已存在
@@ -53,10 +83,19 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        if(opts.compress) {
+            RandomAccessFile mapFile = createMapFile(path);
+            CompressedPageCacheImpl.initMap(mapFile, pageSize);
+            return new CompressedPageCacheImpl(raf, fc, mapFile, pageSize, (int)((memory-opts.tierSize)/pageSize), opts);
+        }
+        return newPageCache(raf, fc, pageSize, (int)((memory-opts.tierSize)/pageSize), opts);
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, new PageCacheOptions());
+    }
+
+    public static PageCacheImpl open(String path, long memory, PageCacheOptions opts) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         //不存在就报错
         if(!f.exists()) {
@@ -68,12 +107,52 @@ public interface PageCache {
 
         FileChannel fc = null;
         RandomAccessFile raf = null;
+        //存在.pmap说明页面是压缩存放的，页大小记录在.pmap中
+        RandomAccessFile mapFile = null;
+        //页大小以创建时写入PageOne的为准，与opts无关
+        int pageSize = PAGE_SIZE;
         try {
             raf = new RandomAccessFile(f, "rw");
             fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
+            File mf = new File(path+CompressedPageCacheImpl.MAP_SUFFIX);
+            if(mf.exists()) {
+                mapFile = new RandomAccessFile(mf, "rw");
+                pageSize = CompressedPageCacheImpl.parseMapPageSize(mapFile);
+            } else {
+                byte[] head = new byte[PageOne.HEAD_SIZE];
+                raf.readFully(head);
+                pageSize = PageOne.parsePageSize(head);
+            }
+        } catch (IOException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        if(pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        if(mapFile != null) {
+            return new CompressedPageCacheImpl(raf, fc, mapFile, pageSize, (int)((memory-opts.tierSize)/pageSize), opts);
+        }
+        return newPageCache(raf, fc, pageSize, (int)((memory-opts.tierSize)/pageSize), opts);
+    }
+
+    private static RandomAccessFile createMapFile(String path) {
+        File mf = new File(path+CompressedPageCacheImpl.MAP_SUFFIX);
+        try {
+            if(!mf.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+            return new RandomAccessFile(mf, "rw");
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return null;
+    }
+
+    //按配置选择实现
+    private static PageCacheImpl newPageCache(RandomAccessFile raf, FileChannel fc, int pageSize, int maxResource, PageCacheOptions opts) {
+        if(PageCacheOptions.MODE_MMAP.equals(opts.mode)) {
+            return new MappedPageCacheImpl(raf, fc, pageSize, maxResource, opts);
+        }
+        return new PageCacheImpl(raf, fc, pageSize, maxResource, opts);
     }
 }
@@ -4,11 +4,24 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import top.guoziyang.mydb.backend.common.AbstractCache;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -17,19 +30,57 @@ import top.guoziyang.mydb.common.Error;
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     
     private static final int MEM_MIN_LIM = 10;
+    // 后台写线程每批最多写回的页数
+    private static final int WRITE_BATCH_LIM = 256;
+    // 预扩展时每次写零的大小
+    private static final int ZERO_CHUNK = 1 << 16;
+    private static final byte[] ZEROS = new byte[ZERO_CHUNK];
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    protected RandomAccessFile file;
+    protected FileChannel fc;
+    private FileLock fileLock;                          // 整个实例期间独占数据库文件
+    private FrameArena arena;                           // 缓存页面的数据都位于其中的帧里
 
-    private AtomicInteger pageNumbers;
+    private ConcurrentSkipListSet<Integer> dirtyPages;  // 脏页页号，按页号有序
+    private AtomicInteger dirtyCount;
+    private int dirtyThreshold;                         // 脏页超过该数量时提前唤醒写线程
+    private PageWriter writer;
+    private ReadAhead readAhead;
+    private PageTier tier;                              // 被驱逐页面的压缩副本，未配置时为null
+    private byte[][] writeBuffers;                      // 写线程拷贝脏页用的缓冲区
+    private int[] writePgnos;
+    private Set<Integer> inFlight;                      // 写线程已拷贝、尚未写出的页号
+    private Lock flightLock;                            // 写线程写出一段连续页时持有
+    private Lock passLock;                              // 写回一轮脏页时持有，写线程与检查点不会同时使用写缓冲区
+    private ReadWriteLock evictLock;                    // 驱逐写出页面时持有读锁，检查点借写锁等待进行中的驱逐
+    private volatile Logger logger;                     // 写回页面前按页面LSN刷日志
 
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
+    protected int pageSize;                             // 本数据库的页大小
+    protected AtomicInteger pageNumbers;              // 已使用的页数
+    private Set<Integer> creating;                      // 已分到页号、初始数据还没写出的页
+    private Lock createLock;                            // 分配页号与登记creating、判断页面可否预读时持有
+    private long extentSize;
+    private volatile long allocated;                    // 文件已分配的长度，不小于已使用的页
+    private Lock extendLock;
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int pageSize, int maxResource, PageCacheOptions opts) {
         super(maxResource);
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
+        //同一文件同时只能有一个实例，两个实例同时写必然损坏数据
+        //同一进程内重复加锁抛出OverlappingFileLockException，其他进程持有时返回null
+        try {
+            this.fileLock = fileChannel.tryLock();
+        } catch(OverlappingFileLockException e) {
+            this.fileLock = null;
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        if(this.fileLock == null) {
+            Panic.panic(Error.FileInUseException);
+        }
         long length = 0;
         try {
             length = file.length();
@@ -38,24 +89,137 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageSize = pageSize;
+        this.arena = new FrameArena(pageSize);
+        //文件可能带着预扩展的尾部，正常关闭时由PageOne记录的页数修正，崩溃时由恢复截断
+        this.pageNumbers = new AtomicInteger((int)(length / pageSize));
+        this.allocated = length;
+        this.extentSize = Math.max(1, (opts.extentSize + pageSize - 1) / pageSize) * pageSize;
+        this.extendLock = new ReentrantLock();
+        this.creating = new HashSet<>();
+        this.createLock = new ReentrantLock();
+        this.dirtyPages = new ConcurrentSkipListSet<>();
+        this.dirtyCount = new AtomicInteger(0);
+        this.dirtyThreshold = maxResource / 4;
+        this.writeBuffers = new byte[WRITE_BATCH_LIM][];
+        this.writePgnos = new int[WRITE_BATCH_LIM];
+        this.inFlight = ConcurrentHashMap.newKeySet();
+        this.flightLock = new ReentrantLock();
+        this.passLock = new ReentrantLock();
+        this.evictLock = new ReentrantReadWriteLock();
+        this.writer = new PageWriter(this);
+        this.writer.start();
+        this.readAhead = new ReadAhead(this, maxResource);
+        if(opts.tierSize > 0) {
+            this.tier = new PageTier(pageSize, opts.tierSize);
+        }
     }
 
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
+        //写出初始数据之前，预扩展的空间里是全零，此时被预读进缓存的页会一直盖住之后写入的数据
+        //分到页号的同时登记，写完才对预读可见
+        int pgno;
+        createLock.lock();
+        try {
+            pgno = pageNumbers.incrementAndGet();
+            creating.add(pgno);
+        } finally {
+            createLock.unlock();
+        }
         //新建page实例，参数为页码，数据，cache
         //因为新建所以cache为null
         Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);
+        //文件按extent预先扩展，新页通常落在已分配的空间里，写入不改变文件长度
+        ensureAllocated(pgno);
+        //只写入，不force，由后台写线程或关闭时统一刷盘
+        write(pg);
+        createLock.lock();
+        try {
+            creating.remove(pgno);
+        } finally {
+            createLock.unlock();
+        }
         return pgno;
     }
 
+    // 该页是否已写出初始数据，可以从文件读入
+    // getPage的页号都来自已返回的newPage，只有预读会碰到还在创建中的页
+    private boolean isInitialized(int pgno) {
+        createLock.lock();
+        try {
+            return pgno <= pageNumbers.get() && !creating.contains(pgno);
+        } finally {
+            createLock.unlock();
+        }
+    }
+
+    public void setLogger(Logger lg) {
+        this.logger = lg;
+    }
+
+    // 先写日志：写回页面前，修改它的日志须已落盘
+    private void flushLog(long lsn) {
+        Logger lg = logger;
+        if(lg != null && lsn > 0) {
+            lg.flush(lsn);
+        }
+    }
+
+    // 保证文件已分配到pgno页，不够时扩展一个extent
+    // 扩展出的部分读出来是全零，看起来像一个合法的页，所以新页写出前不能被预读，见newPage
+    private void ensureAllocated(int pgno) {
+        long need = pageOffset(pgno + 1);
+        if(need <= allocated) {
+            return;
+        }
+        extendLock.lock();
+        try {
+            long from = allocated;
+            if(need <= from) {
+                return;
+            }
+            long to = Math.max(from + extentSize, need);
+            extend(from, to);
+            allocated = to;
+        } finally {
+            extendLock.unlock();
+        }
+    }
+
     public Page getPage(int pgno) throws Exception {
+        readAhead.onAccess(pgno);
         //调用泛型抽象cache的get
         return get((long)pgno);
     }
 
+    public void prefetch(int pgno) {
+        if(pgno > 0 && pgno <= getPageNumber()) {
+            readAhead.hint(pgno);
+        }
+    }
+
+    // 该页当前是否已在缓存中
+    boolean isCached(int pgno) {
+        Page pg = getIfPresent(pgno);
+        if(pg == null) {
+            return false;
+        }
+        release(pg);
+        return true;
+    }
+
+    // 由预读线程调用，把页面加载进缓存但不持有引用
+    void prefetchNow(int pgno) {
+        if(!isInitialized(pgno)) {
+            return;
+        }
+        try {
+            preload(pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+    }
+
     /**
      * 根据pageNumber从数据库文件中读取页数据，并包裹成Page
      */
@@ -64,32 +228,175 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     protected Page getForCache(long key) throws Exception {
         //以pageNo为key
         int pgno = (int)key;
-        //偏移量
-        long offset = PageCacheImpl.pageOffset(pgno);
-        //预留一页大小
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
-        try {
-            //位移，读取
-            fc.position(offset);
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+        //页面数据放在arena的一帧里，通常是某个被驱逐页面刚归还的帧
+        int frame = arena.allocate();
+        byte[] slab = arena.slab(frame);
+        int offset = arena.offset(frame);
+        //压缩层命中时直接解压，不读文件
+        if(tier == null || !tier.take(pgno, slab, offset)) {
+            readPage(pgno, slab, offset);
         }
-        fileLock.unlock();
         //页面应有的属性：pageCache，用来release cache
-        return new PageImpl(pgno, buf.array(), this);
+        return new PageImpl(pgno, slab, offset, pageSize, this);
     }
 
-    //将脏页面保存
+    //将脏页面保存，页面已无引用，帧归还arena
+    //驱逐时只写不force，force留给后台写线程批量进行
     @Override
     protected void releaseForCache(Page pg) {
-        if(pg.isDirty()) {
-            flush(pg);
-            pg.setDirty(false);
+        //在分片锁外执行，此时该页已移出驱逐队列、不会再被引用，同页号的加载会等待本次驱逐完成
+        //清脏标记前就持读锁直到写完，检查点不会在页面已移出脏页集合、还没写出时认为它已落盘
+        evictLock.readLock().lock();
+        try {
+            //写线程手里若还有该页的拷贝，撤销它，由这里写出最新的数据
+            boolean canceled = cancelInFlight(pg.getPageNumber());
+            if(((PageImpl)pg).clearDirty() | canceled) {
+                unmarkDirty(pg.getPageNumber());
+                flushLog(pg.getLsn());
+                write(pg);
+            }
+        } finally {
+            evictLock.readLock().unlock();
         }
+        //此时页面与文件一致，压缩副本留在内存里
+        if(tier != null) {
+            tier.put(pg.getPageNumber(), pg.getData(), pg.getOffset());
+        }
+        arena.free(pg.getData(), pg.getOffset());
     }
-    
+
+    public void markDirty(Page pg) {
+        if(dirtyPages.add(pg.getPageNumber()) && dirtyCount.incrementAndGet() > dirtyThreshold) {
+            writer.signal();
+        }
+    }
+
+    private void unmarkDirty(int pgno) {
+        if(dirtyPages.remove(pgno)) {
+            dirtyCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 由后台写线程调用，按页号顺序写回当前的脏页
+     * 逐页短暂引用、加页锁，清除脏标记后拷贝到写线程自己的缓冲区，随即释放，不会长时间占住缓存
+     * dataitem正在原地修改的页面跳过，留待下一轮，不会写出修改到一半的页面
+     * 连续页号的页合并为一次聚集写，每批只force一次
+     * 写出一批之前先把日志刷到这批页面中最大的LSN，写回的页面不会早于其日志落盘
+     */
+    void writeDirtyPages() {
+        passLock.lock();
+        try {
+            writeDirtyPagesLocked(dirtyPages, null);
+        } finally {
+            passLock.unlock();
+        }
+    }
+
+    // 写回pgnos中仍为脏的页，因正在修改或正在驱逐而跳过的页号加入skipped
+    private void writeDirtyPagesLocked(Iterable<Integer> pgnos, Set<Integer> skipped) {
+        Iterator<Integer> it = pgnos.iterator();
+        int n = 0;
+        long lsn = 0;
+        while(it.hasNext()) {
+            int pgno = it.next();
+            if(!dirtyPages.contains(pgno)) {
+                continue;
+            }
+            Page pg = getIfPresent(pgno);
+            if(pg == null) {
+                //已被驱逐，驱逐时已写回
+                //正在驱逐的页可能还没开始写，驱逐完成前都要重试，检查点才能确定它已写出
+                if(skipped != null && isEvicting(pgno)) {
+                    skipped.add(pgno);
+                }
+                continue;
+            }
+            if(writeBuffers[n] == null) {
+                writeBuffers[n] = new byte[pageSize];
+            }
+            //页锁保证持锁修改页面的线程不会和拷贝交错
+            pg.lock();
+            try {
+                if(pg.isUpdating()) {
+                    if(skipped != null) {
+                        skipped.add(pgno);
+                    }
+                    continue;
+                }
+                //先清脏标记再拷贝，拷贝之后完成的修改会重新标脏
+                unmarkDirty(pgno);
+                ((PageImpl)pg).clearDirty();
+                System.arraycopy(pg.getData(), pg.getOffset(), writeBuffers[n], 0, pageSize);
+                writePgnos[n] = pgno;
+                //拷贝时页面的LSN
+                lsn = Math.max(lsn, pg.getLsn());
+                //释放引用前登记，之后驱逐该页的线程能看到这份拷贝并撤销它
+                inFlight.add(pgno);
+            } finally {
+                pg.unlock();
+                release(pg);
+            }
+            n ++;
+            if(n == WRITE_BATCH_LIM) {
+                flushLog(lsn);
+                writeBatch(n);
+                n = 0;
+                lsn = 0;
+            }
+        }
+        if(n > 0) {
+            flushLog(lsn);
+            writeBatch(n);
+        }
+    }
+
+    // 写出writeBuffers中的前n页，页号升序，跳过已被撤销的页
+    // 每段连续页在flightLock内写出，写的过程中不会获取其他锁
+    private void writeBatch(int n) {
+        try {
+            int start = 0;
+            while(start < n) {
+                int end;
+                flightLock.lock();
+                try {
+                    while(start < n && !inFlight.contains(writePgnos[start])) {
+                        start ++;
+                    }
+                    if(start == n) break;
+                    end = start + 1;
+                    while(end < n && writePgnos[end] == writePgnos[end-1] + 1 && inFlight.contains(writePgnos[end])) {
+                        end ++;
+                    }
+                    writePages(writePgnos[start], writeBuffers, start, end);
+                    for(int i = start; i < end; i ++) {
+                        inFlight.remove(writePgnos[i]);
+                    }
+                } finally {
+                    flightLock.unlock();
+                }
+                start = end;
+            }
+            force();
+        } finally {
+            inFlight.clear();
+        }
+    }
+
+    // 撤销写线程中该页尚未写出的拷贝，返回是否撤销成功
+    // 若写线程正在写这一页，等它写完，之后的写不会被旧拷贝覆盖
+    private boolean cancelInFlight(int pgno) {
+        if(!inFlight.contains(pgno)) {
+            return false;
+        }
+        flightLock.lock();
+        try {
+            return inFlight.remove(pgno);
+        } finally {
+            flightLock.unlock();
+        }
+    }
+
     public void release(Page page) {
         //源于抽象cache的强行release
         //release的逻辑是传入pageNo对应的key
@@ -97,46 +404,131 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         release((long)page.getPageNumber());
     }
 
+    /**
+     * 写回调用时的所有脏页并刷盘，由检查点调用
+     * 缓存中的脏页按写线程的方式逐页拷贝写出，不会阻塞修改页面的线程
+     * 正在原地修改的页面稍后重试，直到写出为止，原地修改都很短
+     * 此前已被驱逐的脏页在驱逐时写出，等进行中的驱逐写完再force，返回时这些修改都已落盘
+     */
+    public void flushDirtyPages() {
+        passLock.lock();
+        try {
+            Set<Integer> skipped = new HashSet<>();
+            writeDirtyPagesLocked(dirtyPages, skipped);
+            while(!skipped.isEmpty()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                Set<Integer> retry = skipped;
+                skipped = new HashSet<>();
+                writeDirtyPagesLocked(retry, skipped);
+            }
+        } finally {
+            passLock.unlock();
+        }
+        evictLock.writeLock().lock();
+        evictLock.writeLock().unlock();
+        force();
+    }
+
+    //同步写回并刷盘，用于第一页这类需要立即持久化的页面
     public void flushPage(Page pg) {
-        flush(pg);
+        cancelInFlight(pg.getPageNumber());
+        flushLog(pg.getLsn());
+        write(pg);
+        force();
     }
 
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
+    private void write(Page pg) {
+        writePage(pg.getPageNumber(), pg.getData(), pg.getOffset());
+    }
+
+    private void force() {
+        sync();
+    }
+
+    /**
+     * 以下为文件读写的具体实现，子类可替换为其他方式访问数据库文件
+     */
+
+    // 读入一页到data[off, off+pageSize)，文件末尾之后的部分清零
+    protected void readPage(int pgno, byte[] data, int off) {
         long offset = pageOffset(pgno);
+        //按位置读，不改变channel的position，多个线程可以同时读
+        ByteBuffer buf = ByteBuffer.wrap(data, off, pageSize);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position() - off) < 0) {
+                    //读到文件末尾，复用的帧要把剩余部分清零
+                    Arrays.fill(data, buf.position(), off + pageSize, (byte)0);
+                    break;
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    protected void writePage(int pgno, byte[] data, int off) {
+        long offset = pageOffset(pgno);
+        try {
+            //将当前data按位置写入page
+            ByteBuffer buf = ByteBuffer.wrap(data, off, pageSize);
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position() - off);
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
 
-        fileLock.lock();
+    // 把pages[from, to)写到从firstPgno开始的连续页上，只由写线程调用
+    protected void writePages(int firstPgno, byte[][] pages, int from, int to) {
+        ByteBuffer[] bufs = new ByteBuffer[to - from];
+        for(int i = from; i < to; i ++) {
+            bufs[i - from] = ByteBuffer.wrap(pages[i]);
+        }
+        try {
+            //只有写线程使用channel的position，聚集写需要通过position定位
+            fc.position(pageOffset(firstPgno));
+            while(bufs[bufs.length - 1].hasRemaining()) {
+                fc.write(bufs);
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    protected void sync() {
         try {
-            //将当前data写入page
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
         }
     }
 
-    public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+    // 把文件从from扩展到to，写零使磁盘空间真正分配，之后写页面不再改变文件元数据
+    protected void extend(long from, long to) {
+        try {
+            for(long pos = from; pos < to; ) {
+                ByteBuffer buf = ByteBuffer.wrap(ZEROS, 0, (int)Math.min(ZERO_CHUNK, to - pos));
+                while(buf.hasRemaining()) {
+                    pos += fc.write(buf, pos);
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    protected void setLength(long size) {
         try {
-            //文件截断到maxPgno为止（包含）
             file.setLength(size);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        //改变记录的最大页数
-        pageNumbers.set(maxPgno);
     }
 
-    @Override
-    public void close() {
-        //删除cache内容
-        super.close();
+    protected void closeFile() {
         try {
-            //关掉file
             fc.close();
             file.close();
         } catch (IOException e) {
@@ -144,12 +536,73 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
     }
 
+    public void truncateByBgno(int maxPgno) {
+        extendLock.lock();
+        try {
+            //文件截断到maxPgno为止（包含）
+            setLength(pageOffset(maxPgno + 1));
+            allocated = pageOffset(maxPgno + 1);
+            //改变记录的最大页数
+            pageNumbers.set(maxPgno);
+            if(tier != null) {
+                tier.truncate(maxPgno);
+            }
+        } finally {
+            extendLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        //先停写线程，再由cache写回剩余的脏页，最后统一刷盘
+        writer.close();
+        readAhead.close();
+        super.close();
+        //去掉预扩展出来的尾部
+        setLength(pageOffset(pageNumbers.get() + 1));
+        force();
+        //关掉file，文件锁随之释放
+        closeFile();
+    }
+
+    /**
+     * 模拟崩溃，测试用：停掉后台线程后直接关闭文件
+     * 缓存中的脏页不写回，文件不截断也不force，之后只能丢弃这个实例
+     */
+    public void crash() {
+        writer.close();
+        readAhead.close();
+        closeFile();
+    }
+
     public int getPageNumber() {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean isShared(Page pg) {
+        return refCount(pg.getPageNumber()) > 1;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return 0;
+    }
+
+    // 压缩层的命中和未命中次数，未配置压缩层时都为0
+    public long getTierHits() {
+        return tier == null ? 0 : tier.hits();
+    }
+
+    public long getTierMisses() {
+        return tier == null ? 0 : tier.misses();
+    }
+
+    protected long pageOffset(int pgno) {
+        return (long)(pgno-1) * pageSize;
     }
     
 }
@@ -0,0 +1,22 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+/**
+ * PageCache的可选配置，由Launcher的命令行参数填入
+ */
+public class PageCacheOptions {
+    public static final String MODE_FILE = "file";
+    public static final String MODE_MMAP = "mmap";
+
+    public static final long DEFAULT_EXTENT_SIZE = 4 << 20;
+
+    // 访问数据库文件的方式，file为按位置读写，mmap为内存映射
+    public String mode = MODE_FILE;
+    // 文件每次预先扩展的字节数，向上取整到页大小
+    public long extentSize = DEFAULT_EXTENT_SIZE;
+    // 新建数据库时的页大小，打开已有数据库时以PageOne中记录的为准
+    public int pageSize = PageCache.PAGE_SIZE;
+    // 新建数据库时是否压缩存放页面，压缩时忽略mode；打开时由是否存在.pmap文件决定
+    public boolean compress = false;
+    // 内存压缩层的大小，从缓存的内存中划出，0表示不使用
+    public long tierSize = 0;
+}
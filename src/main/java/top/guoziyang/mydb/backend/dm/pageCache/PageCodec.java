@@ -0,0 +1,36 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 页面的压缩与解压，压缩文件格式和内存中的压缩层共用
+ * Deflater/Inflater按线程复用，避免每页都分配本地内存
+ */
+class PageCodec {
+    private static final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+    // 压缩data[off, off+len)到out，压缩结果超过limit时返回-1
+    static int compress(byte[] data, int off, int len, byte[] out, int limit) {
+        Deflater def = deflater.get();
+        def.reset();
+        def.setInput(data, off, len);
+        def.finish();
+        int n = def.deflate(out, 0, limit);
+        return def.finished() ? n : -1;
+    }
+
+    // 解压in[inOff, inOff+inLen)到data[off, off+len)，结果不是恰好len字节时返回false
+    static boolean decompress(byte[] in, int inOff, int inLen, byte[] data, int off, int len) {
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(in, inOff, inLen);
+        try {
+            return inf.inflate(data, off, len) == len && inf.finished();
+        } catch(DataFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内存中的压缩页层，位于页缓存和数据库文件之间
+ *
+ * 页面被驱逐时（脏页已写回，内容与文件一致）压缩后放入这里，缓存未命中时先在这里找，
+ * 命中则解压，不必读文件；页面重新进入缓存时从这里移除，两层不会同时持有一页
+ * 占用超过上限时按放入的先后淘汰，压缩效果差的页面不放入
+ */
+class PageTier {
+    // 每项除数据外的大致开销
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[PageCache.MAX_PAGE_SIZE]);
+
+    private int pageSize;
+    private long capacity;                              // 压缩数据占用的上限，字节
+    private long used;
+    private Lock lock;
+    private LinkedHashMap<Integer, byte[]> pages;       // 按放入顺序排列
+
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    PageTier(int pageSize, long capacity) {
+        this.pageSize = pageSize;
+        this.capacity = capacity;
+        this.lock = new ReentrantLock();
+        this.pages = new LinkedHashMap<>();
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+    }
+
+    // 压缩放入一页，压缩后超过页大小3/4的不放
+    void put(int pgno, byte[] data, int off) {
+        byte[] buf = buffer.get();
+        int length = PageCodec.compress(data, off, pageSize, buf, pageSize / 4 * 3);
+        if(length < 0) {
+            remove(pgno);
+            return;
+        }
+        byte[] compressed = Arrays.copyOf(buf, length);
+        lock.lock();
+        try {
+            byte[] old = pages.remove(pgno);
+            if(old != null) {
+                used -= old.length + ENTRY_OVERHEAD;
+            }
+            pages.put(pgno, compressed);
+            used += length + ENTRY_OVERHEAD;
+            Iterator<byte[]> it = pages.values().iterator();
+            while(used > capacity && it.hasNext()) {
+                used -= it.next().length + ENTRY_OVERHEAD;
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 取出一页解压到data[off, off+pageSize)，未命中返回false
+    boolean take(int pgno, byte[] data, int off) {
+        byte[] compressed;
+        lock.lock();
+        try {
+            compressed = pages.remove(pgno);
+            if(compressed != null) {
+                used -= compressed.length + ENTRY_OVERHEAD;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if(compressed == null || !PageCodec.decompress(compressed, 0, compressed.length, data, off, pageSize)) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    void remove(int pgno) {
+        lock.lock();
+        try {
+            byte[] old = pages.remove(pgno);
+            if(old != null) {
+                used -= old.length + ENTRY_OVERHEAD;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 丢弃页号大于maxPgno的页
+    void truncate(int maxPgno) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Integer, byte[]>> it = pages.entrySet().iterator();
+            while(it.hasNext()) {
+                Map.Entry<Integer, byte[]> e = it.next();
+                if(e.getKey() > maxPgno) {
+                    used -= e.getValue().length + ENTRY_OVERHEAD;
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+}
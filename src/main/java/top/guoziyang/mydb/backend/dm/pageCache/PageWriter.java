@@ -0,0 +1,75 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台写脏页线程
+ * 每隔一段时间，或脏页数量超过阈值时被唤醒，调用pageCache把脏页批量写回
+ */
+class PageWriter implements Runnable {
+    // 两次写回之间的最长间隔
+    private static final long INTERVAL_MILLIS = 200;
+
+    private PageCacheImpl pc;
+    private Thread thread;
+    private Lock lock;
+    private Condition wakeup;
+    private boolean signaled;
+    private volatile boolean closed;
+
+    PageWriter(PageCacheImpl pc) {
+        this.pc = pc;
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+        this.thread = new Thread(this, "page-writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // 脏页较多时提前唤醒写线程
+    void signal() {
+        lock.lock();
+        try {
+            signaled = true;
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while(!closed) {
+            lock.lock();
+            try {
+                if(!signaled) {
+                    wakeup.await(INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                signaled = false;
+            } catch(InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+            if(closed) break;
+            pc.writeDirtyPages();
+        }
+    }
+
+    // 停止写线程，剩余的脏页由关闭cache时写回
+    void close() {
+        closed = true;
+        signal();
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 预读
+ *
+ * 按线程分别观察getPage的页号序列，连续访问递增的页号时判定为顺序扫描，
+ * 在后台线程中提前加载后面的页，窗口从MIN_WINDOW开始每次翻倍，最大为缓存容量的四分之一
+ * 多个客户端同时扫描时各自的序列互不打断
+ * 调用方也可以直接给出提示，如B+树叶子的兄弟节点
+ * 预读只是优化，任务队列满或缓存满时直接丢弃
+ */
+class ReadAhead {
+    private static final int THREADS = 2;
+    private static final int QUEUE_LIM = 256;
+    private static final int MIN_WINDOW = 4;
+    // 连续访问多少个相邻页后开始预读
+    private static final int TRIGGER = 2;
+
+    private PageCacheImpl pc;
+    private ThreadPoolExecutor executor;
+    private int maxWindow;
+
+    // 每个线程一份顺序检测的状态，只由该线程访问
+    private ThreadLocal<Stream> streams;
+
+    private static class Stream {
+        int last;
+        int streak;
+        int window = MIN_WINDOW;
+        int ahead;                                      // 已经发起预读的最大页号
+    }
+
+    ReadAhead(PageCacheImpl pc, int maxResource) {
+        this.pc = pc;
+        this.maxWindow = Math.max(MIN_WINDOW, maxResource / 4);
+        this.streams = ThreadLocal.withInitial(Stream::new);
+        AtomicInteger no = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_LIM), r -> {
+                Thread t = new Thread(r, "read-ahead-" + no.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    // 每次getPage时调用
+    void onAccess(int pgno) {
+        Stream s = streams.get();
+        int from = 0, to = 0;
+        if(pgno == s.last + 1) {
+            s.streak ++;
+        } else if(pgno != s.last) {
+            s.streak = 0;
+            s.window = MIN_WINDOW;
+            s.ahead = pgno;
+        }
+        s.last = pgno;
+        // 已预读的部分消耗过半时再发起下一段
+        if(s.streak >= TRIGGER && s.ahead - pgno < s.window / 2) {
+            from = Math.max(s.ahead, pgno) + 1;
+            to = Math.min(pgno + s.window, pc.getPageNumber());
+            s.ahead = Math.max(s.ahead, to);
+            s.window = Math.min(s.window * 2, maxWindow);
+        }
+        for(int i = from; i <= to && from > 0; i ++) {
+            hint(i);
+        }
+    }
+
+    // 异步加载一页
+    void hint(int pgno) {
+        if(executor.isShutdown()) {
+            return;
+        }
+        executor.execute(() -> pc.prefetchNow(pgno));
+    }
+
+    // 丢弃排队的预读并等待正在进行的完成
+    // 不能中断预读线程，FileChannel上的读被中断会关闭整个channel
+    void close() {
+        executor.getQueue().clear();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package top.guoziyang.mydb.backend.dm.pageIndex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 持久化的空闲空间表，打开数据库时据此填充PageIndex，不必读遍所有页
+ * 文件结构
+ * [PageSize 4][LogPosition 8][Checksum 4][Entry 1]...
+ * Entry: 每页一字节，按页号从1开始排列，记录空闲空间除以unit的值，只会低估
+ * LogPosition: 写出时的日志位置，关闭时为日志长度，检查点时为其重做位置，之后的日志涉及的页面记录已过时，打开时需重新扫描
+ *
+ * 运行时只在内存中更新，检查点和关闭时整体写出，先写临时文件再改名，不会留下写了一半的表
+ * 崩溃后表停留在上一次检查点时，恢复后按日志修补
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+
+    private static final int OF_PAGE_SIZE = 0;
+    private static final int OF_LOG_POSITION = OF_PAGE_SIZE + 4;
+    private static final int OF_CHECKSUM = OF_LOG_POSITION + 8;
+    private static final int OF_ENTRIES = OF_CHECKSUM + 4;
+
+    private File file;
+    private int pageSize;
+    private int unit;                       // 一个单位代表的字节数
+    private long logPosition;               // 为-1说明没有可用的表
+    private byte[] entries;
+    private int count;                      // 记录了空闲空间的页数
+    private Lock lock;
+
+    private FreeSpaceMap(String path, int pageSize) {
+        this.file = new File(path+FSM_SUFFIX);
+        this.pageSize = pageSize;
+        this.unit = (pageSize + 254) / 255;
+        this.logPosition = -1;
+        this.entries = new byte[0];
+        this.lock = new ReentrantLock();
+    }
+
+    // 新建数据库时使用，旧的表直接作废
+    public static FreeSpaceMap create(String path, int pageSize) {
+        FreeSpaceMap fsm = new FreeSpaceMap(path, pageSize);
+        fsm.file.delete();
+        return fsm;
+    }
+
+    // 表不存在或损坏时返回的实例不可用，isValid为false
+    public static FreeSpaceMap open(String path, int pageSize) {
+        FreeSpaceMap fsm = new FreeSpaceMap(path, pageSize);
+        if(!fsm.file.exists()) {
+            return fsm;
+        }
+        byte[] raw = null;
+        try {
+            raw = Files.readAllBytes(fsm.file.toPath());
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        if(raw.length < OF_ENTRIES) {
+            return fsm;
+        }
+        int checksum = Parser.parseInt(Arrays.copyOfRange(raw, OF_CHECKSUM, OF_ENTRIES));
+        if(checksum != checksum(raw) || Parser.parseInt(Arrays.copyOfRange(raw, OF_PAGE_SIZE, OF_LOG_POSITION)) != pageSize) {
+            return fsm;
+        }
+        fsm.logPosition = Parser.parseLong(Arrays.copyOfRange(raw, OF_LOG_POSITION, OF_CHECKSUM));
+        fsm.entries = Arrays.copyOfRange(raw, OF_ENTRIES, raw.length);
+        fsm.count = fsm.entries.length;
+        return fsm;
+    }
+
+    public boolean isValid() {
+        return logPosition >= 0;
+    }
+
+    public long getLogPosition() {
+        return logPosition;
+    }
+
+    // 表中记录的页数，更大的页号需要扫描
+    public int getPageCount() {
+        return count;
+    }
+
+    public int get(int pgno) {
+        lock.lock();
+        try {
+            if(pgno > count) {
+                return 0;
+            }
+            return (entries[pgno-1] & 0xFF) * unit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void set(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            if(pgno > entries.length) {
+                entries = Arrays.copyOf(entries, Math.max(pgno, entries.length * 2));
+            }
+            count = Math.max(count, pgno);
+            entries[pgno-1] = (byte)Math.min(freeSpace / unit, 255);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 写出整张表，logPosition之前的日志涉及的页面都已记入表中
+    public void write(long logPosition) {
+        byte[] raw;
+        lock.lock();
+        try {
+            raw = new byte[OF_ENTRIES + count];
+            System.arraycopy(entries, 0, raw, OF_ENTRIES, count);
+        } finally {
+            lock.unlock();
+        }
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
+        System.arraycopy(Parser.long2Byte(logPosition), 0, raw, OF_LOG_POSITION, 8);
+        System.arraycopy(Parser.int2Byte(checksum(raw)), 0, raw, OF_CHECKSUM, 4);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try(FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(raw);
+            out.getFD().sync();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        this.logPosition = logPosition;
+    }
+
+    // 校验和不包括自身所在的4字节
+    private static int checksum(byte[] raw) {
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, OF_CHECKSUM);
+        crc.update(raw, OF_ENTRIES, raw.length - OF_ENTRIES);
+        return (int)crc.getValue();
+    }
+}
@@ -1,62 +1,84 @@
 package top.guoziyang.mydb.backend.dm.pageIndex;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * 按空闲空间分桶的页面索引，每个桶是一个无锁队列
+ * 取出和放回都是O(1)，不同线程的插入之间不共享锁
+ * 一页通常只在一个桶中：取出后由插入方独占，写完再按新的空闲空间放回
+ * 回收数据使页面升到更高的桶时用update重新登记，原来的登记作废，取到时丢掉
+ * 回收与插入方并发时，同一页仍可能同时被两方取到，选中的一方在页锁内重新检查空间，放不下就换一页
+ */
 public class PageIndex {
     // 将一页划成40个区间
     private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    private int threshold;               // 每个区间的大小，随页大小而定
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    private Queue<PageInfo>[] lists;
+    private Map<Integer, Integer> generations;      // 重新登记过的页的代数，更早代数的登记已作废
 
     @SuppressWarnings("unchecked")
-    public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
+    public PageIndex(int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
+        lists = (Queue<PageInfo>[])new Queue<?>[INTERVALS_NO+1];
         for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentLinkedQueue<>();
         }
+        generations = new ConcurrentHashMap<>();
     }
 
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            //添加信息，看看对应页面应该放哪 
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
+        //不足一个区间的页不会被选中，不必登记
+        if(!isSelectable(freeSpace)) {
+            return;
         }
+        //添加信息，看看对应页面应该放哪
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        pi.generation = generations.getOrDefault(pgno, 0);
+        lists[bucketOf(freeSpace)].offer(pi);
+    }
+
+    // 页面空闲空间变多后重新登记，该页之前的登记都作废
+    public void update(int pgno, int freeSpace) {
+        if(!isSelectable(freeSpace)) {
+            return;
+        }
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        pi.generation = generations.merge(pgno, 1, Integer::sum);
+        lists[bucketOf(freeSpace)].offer(pi);
+    }
+
+    // 有这么多空闲空间的页所在的桶，不足一个区间的为0
+    public int bucketOf(int freeSpace) {
+        return Math.min(freeSpace / threshold, INTERVALS_NO);
+    }
+
+    // 有这么多空闲空间的页能否被选中
+    public boolean isSelectable(int freeSpace) {
+        return freeSpace >= threshold;
     }
 
     public PageInfo select(int spaceSize) {
-        lock.lock();
-        try {
-            //需要多少区间
-            int number = spaceSize / THRESHOLD;
-            
-            //因为索引是按照从1开始
-            if(number < INTERVALS_NO) number ++;
-            while(number <= INTERVALS_NO) {
-                //没有能正好容纳的页，则再++，寻找更大页
-                if(lists[number].size() == 0) {
-                    number ++;
-                    continue;
+        //需要多少区间
+        int number = spaceSize / threshold;
+
+        //因为索引是按照从1开始
+        if(number < INTERVALS_NO) number ++;
+        while(number <= INTERVALS_NO) {
+            //取出第一个可用页面的信息，没有能正好容纳的页，则寻找更大页
+            PageInfo pi;
+            while((pi = lists[number].poll()) != null) {
+                if(pi.generation == generations.getOrDefault(pi.pgno, 0)) {
+                    return pi;
                 }
-                //取出第一个可用页面的信息你 
-                return lists[number].remove(0);
+                //该页已重新登记过，这是作废的登记
             }
-            
-            return null;
-        } finally {
-            lock.unlock();
+            number ++;
         }
+        return null;
     }
 
 }
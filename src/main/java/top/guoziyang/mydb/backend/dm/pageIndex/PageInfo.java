@@ -3,6 +3,7 @@ package top.guoziyang.mydb.backend.dm.pageIndex;
 public class PageInfo {
     public int pgno;
     public int freeSpace;
+    int generation;     // 登记时该页的代数，见PageIndex.update
 
     public PageInfo(int pgno, int freeSpace) {
         this.pgno = pgno;
@@ -20,10 +20,11 @@ public class BPlusTree {
     long bootUid;
     DataItem bootDataItem;
     Lock bootLock;
+    int balance;                        // 节点的平衡因子，由数据库的页大小决定
 
     public static long create(DataManager dm) throws Exception {
         //生成空树的数据
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(Node.balanceNumber(dm.getPageSize()));
         //用超级事务插入一个新root，返回uid
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
         //再存储uid作为di，返回新uid用来操作即bootUid
@@ -40,6 +41,7 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.balance = Node.balanceNumber(dm.getPageSize());
         return t;
     }
 
@@ -58,7 +60,7 @@ public class BPlusTree {
         bootLock.lock();
         try {
             //生成新版数据
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey, balance);
             //生成新uid，完成insert
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             //修改di必须环节
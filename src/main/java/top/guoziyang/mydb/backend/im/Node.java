@@ -6,6 +6,7 @@ import java.util.List;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
 
@@ -20,8 +21,16 @@ public class Node {
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET+2;
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
+    // 默认页大小下的平衡因子，其他页大小按比例缩放，节点大小随之变化
     static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+
+    static int balanceNumber(int pageSize) {
+        return BALANCE_NUMBER * pageSize / PageCache.PAGE_SIZE;
+    }
+
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2*8)*(balance*2+2);
+    }
 
     BPlusTree tree;
     DataItem dataItem;
@@ -87,7 +96,7 @@ public class Node {
         //在原本的k+1位置上开始覆盖
         int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
         //终点是数据结尾
-        int end = raw.start+NODE_SIZE-1;
+        int end = raw.end-1;
         //从k+1个到结尾
         //全都
         for(int i = end; i >= begin; i --) {
@@ -95,8 +104,9 @@ public class Node {
         }
     }
 
-    static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(long left, long right, long key, int balance)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
@@ -109,8 +119,9 @@ public class Node {
         return raw.raw;
     }
 
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int balance)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -314,7 +325,7 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return tree.balance*2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
@@ -323,19 +334,20 @@ public class Node {
 
     private SplitRes split() throws Exception {
         //复制一个新右边节点用来分裂
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int size = nodeSize(tree.balance);
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
         //新节点保持原节点属性，数据对半分
         //且右节点继承兄弟
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, tree.balance);
         setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, tree.balance);
         //写入
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
 
         //本节点变为左节点，兄弟是新生右节点
         //key数量只保留一半
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawNoKeys(raw, tree.balance);
         setRawSibling(raw, son);
 
         //至此，在当前层的分裂已经完成
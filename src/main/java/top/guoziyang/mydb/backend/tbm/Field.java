@@ -1,10 +1,13 @@
 package top.guoziyang.mydb.backend.tbm;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
 
 import com.google.common.primitives.Bytes;
 
+import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.im.BPlusTree;
 import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
@@ -18,8 +21,13 @@ import top.guoziyang.mydb.common.Error;
  * 二进制格式为：
  * [FieldName][TypeName][IndexUid]
  * 如果field无索引，IndexUid为0
+ *
+ * 超过页大小1/4的字符串存到溢出页，行中的值为
+ * [-1][Length][FirstUid]
  */
 public class Field {
+    private static final int OVERFLOW = -1;
+
     long uid;
     private Table tb;
     String fieldName;
@@ -142,7 +150,7 @@ public class Field {
         long uid = 0;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                uid = Parser.str2Uid(loadString(key));
                 break;
             case "int32":
                 int uint = (int)key;
@@ -154,7 +162,19 @@ public class Field {
         return uid;
     }
 
-    public byte[] value2Raw(Object v) {
+    public byte[] value2Raw(long xid, Object v) throws Exception {
+        if(v instanceof OverflowValue) {
+            //值未改变，沿用原来的溢出数据
+            OverflowValue ov = (OverflowValue)v;
+            return Bytes.concat(Parser.int2Byte(OVERFLOW), Parser.int2Byte(ov.length), Parser.long2Byte(ov.uid));
+        }
+        if("string".equals(fieldType)) {
+            byte[] data = ((String)v).getBytes();
+            if(data.length > dm().getPageSize() / 4) {
+                long uid = ((TableManagerImpl)tb.tbm).vm.insertOverflow(xid, data);
+                return Bytes.concat(Parser.int2Byte(OVERFLOW), Parser.int2Byte(data.length), Parser.long2Byte(uid));
+            }
+        }
         byte[] raw = null;
         switch(fieldType) {
             case "int32":
@@ -188,6 +208,13 @@ public class Field {
                 res.shift = 8;
                 break;
             case "string":
+                if(Parser.parseInt(Arrays.copyOf(raw, 4)) == OVERFLOW) {
+                    int length = Parser.parseInt(Arrays.copyOfRange(raw, 4, 8));
+                    long uid = Parser.parseLong(Arrays.copyOfRange(raw, 8, 16));
+                    res.v = new OverflowValue(uid, length);
+                    res.shift = 16;
+                    break;
+                }
                 ParseStringRes r = Parser.parseString(raw);
                 res.v = r.str;
                 res.shift = r.next;
@@ -207,12 +234,31 @@ public class Field {
                 str = String.valueOf((long)v);
                 break;
             case "string":
-                str = (String)v;
+                str = loadString(v);
                 break;
         }
         return str;
     }
 
+    // 溢出的值从溢出页中读出
+    private String loadString(Object v) {
+        if(!(v instanceof OverflowValue)) {
+            return (String)v;
+        }
+        OverflowValue ov = (OverflowValue)v;
+        byte[] data = null;
+        try(InputStream in = dm().readOverflow(ov.uid)) {
+            data = in.readNBytes(ov.length);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        return new String(data);
+    }
+
+    private DataManager dm() {
+        return ((TableManagerImpl)tb.tbm).dm;
+    }
+
     //打印field属性
     @Override
     public String toString() {
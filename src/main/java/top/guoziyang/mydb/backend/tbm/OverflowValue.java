@@ -0,0 +1,15 @@
+package top.guoziyang.mydb.backend.tbm;
+
+/**
+ * 存放在溢出页中的字段值，行中只保存指针
+ * 解析行时不读溢出页，只有打印或计算索引键时才按块读出
+ */
+public class OverflowValue {
+    public long uid;
+    public int length;
+
+    public OverflowValue(long uid, int length) {
+        this.uid = uid;
+        this.length = length;
+    }
+}
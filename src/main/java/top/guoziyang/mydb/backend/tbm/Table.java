@@ -109,13 +109,27 @@ public class Table {
         List<Long> uids = parseWhere(delete.where);
         int count = 0;
         for (Long uid : uids) {
+            //先读出记录，删掉后它引用的溢出数据随版本一起回收
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+            if(raw == null) continue;
             if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
                 count ++;
+                Map<String, Object> entry = parseEntry(raw);
+                for (Field field : fields) {
+                    dropOverflow(xid, entry.get(field.fieldName));
+                }
             }
         }
         return count;
     }
 
+    // 被删除的版本引用的溢出数据，没有后继版本沿用时一起回收
+    private void dropOverflow(long xid, Object v) {
+        if(v instanceof OverflowValue) {
+            ((TableManagerImpl)tbm).vm.dropOverflow(xid, ((OverflowValue)v).uid);
+        }
+    }
+
     public int update(long xid, Update update) throws Exception {
         List<Long> uids = parseWhere(update.where);
         Field fd = null;
@@ -135,12 +149,16 @@ public class Table {
             if(raw == null) continue;
 
             //删除旧记录
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
+            boolean deleted = ((TableManagerImpl)tbm).vm.delete(xid, uid);
             //用map是因为一条entry有多个field的数据
             //新数据基于旧数据，仅重新put改变的field
             Map<String, Object> entry = parseEntry(raw);
+            //其他field的溢出数据由新版本沿用，只有被替换的值要回收
+            if(deleted) {
+                dropOverflow(xid, entry.get(fd.fieldName));
+            }
             entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
+            raw = entry2Raw(xid, entry);
             long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
             
             count ++;
@@ -168,7 +186,7 @@ public class Table {
 
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
+        byte[] raw = entry2Raw(xid, entry);
         long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
         for (Field field : fields) {
             if(field.isIndexed()) {
@@ -295,10 +313,11 @@ public class Table {
         return entry;
     }
 
-    private byte[] entry2Raw(Map<String, Object> entry) {
+    //大的字符串在这里写入溢出页，行中只留指针
+    private byte[] entry2Raw(long xid, Map<String, Object> entry) throws Exception {
         byte[] raw = new byte[0];
         for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
+            raw = Bytes.concat(raw, field.value2Raw(xid, entry.get(field.fieldName)));
         }
         return raw;
     }
@@ -58,6 +58,8 @@ public class TableManagerImpl implements TableManager {
 
     private void updateFirstTableUid(long uid) {
         byte[] raw = Parser.long2Byte(uid);
+        //启动文件不能指向恢复后不存在的数据，先让表的日志落盘
+        dm.flushLog();
         booter.update(raw);
     }
 
@@ -1,9 +1,10 @@
 package top.guoziyang.mydb.backend.utils;
 
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    // 页内偏移占低16位，按无符号数存放，64KB的页里超过32767的偏移也不会溢出到页号
+    public static long addressToUid(int pgno, int offset) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = (long)offset & 0xFFFFL;
         return u0 << 32 | u1;
     }
 }
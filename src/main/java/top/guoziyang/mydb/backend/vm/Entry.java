@@ -48,13 +48,8 @@ public class Entry {
         return Bytes.concat(xmin, xmax, data);
     }
 
-    //因为这一步所以需要在entry里面存所属的vm
-    //是cache的release
+    //entry不单独缓存，释放即释放底层的dataItem
     public void release() {
-        ((VersionManagerImpl)vm).releaseEntry(this);
-    }
-
-    public void remove() {
         dataItem.release();
     }
 
@@ -61,8 +61,8 @@ public class LockTable {
             //没有死锁，生成等待锁
             //这个等锁说明资源锁在lt中，lt分配时放开锁其他线程才能继续
             //返回锁
-            Lock clock = new ReentrantLock();
-            Condition condition = clock.newCondition();
+            //condition挂在表锁上，selectNewXID持有表锁时才能signal
+            Condition condition = lock.newCondition();
             waitCondition.put(xid, condition);
             return condition;
 
@@ -1,6 +1,8 @@
 package top.guoziyang.mydb.backend.vm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
@@ -14,15 +16,36 @@ public class Transaction {
     public Map<Long, Boolean> snapshot;
     public Exception err;
     public boolean autoAborted;
+    //本事务插入的数据，回滚时回收
+    public List<Long> inserted;
+    //本事务删除的版本，提交后等到没有事务还能看到时回收
+    public List<Long> deleted;
+    //本事务写入的溢出数据，回滚时回收
+    public List<Long> overflows;
+    //本事务删除的版本引用、且没有后继版本沿用的溢出数据，提交后回收
+    public List<Long> dropped;
+    //开始时VM的时钟，见VersionManagerImpl.vacuum
+    public long seq;
+    //可重复读事务仍能看到不早于horizon的事务删除的版本，读已提交事务看不到已提交的删除，不作限制
+    public long horizon;
     //需要用id，level，存活tx列表
     public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
+        t.inserted = new ArrayList<>();
+        t.deleted = new ArrayList<>();
+        t.overflows = new ArrayList<>();
+        t.dropped = new ArrayList<>();
+        t.horizon = Long.MAX_VALUE;
         if(level != 0) {
             t.snapshot = new HashMap<>();
+            t.horizon = xid;
             for(Long x : active.keySet()) {
                 t.snapshot.put(x, true);
+                if(x != TransactionManagerImpl.SUPER_XID) {
+                    t.horizon = Math.min(t.horizon, x);
+                }
             }
         }
         return t;
@@ -7,6 +7,8 @@ public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    long insertOverflow(long xid, byte[] data) throws Exception;
+    void dropOverflow(long xid, long uid);
 
     long begin(int level);
     void commit(long xid) throws Exception;
@@ -1,34 +1,58 @@
 package top.guoziyang.mydb.backend.vm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import top.guoziyang.mydb.backend.common.AbstractCache;
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.common.Error;
 
-public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
+// entry直接建在dataItem之上，不再单独缓存，读取一条记录只查一次页面缓存
+public class VersionManagerImpl implements VersionManager {
 
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
     Lock lock;
     LockTable lt;
+    PriorityQueue<Dead> deadVersions;       // 等待回收的版本，按删除者的xid排序，由lock保护
+    PriorityQueue<Dead> deadChains;         // 等待回收的溢出数据，按删除者提交时的时钟排序，由lock保护
+    long clock;                             // 事务开始和提交时各加一，由lock保护
+    Map<Long, Integer> pinned;              // delete正持有的版本及持有次数，由lock保护
+    Set<Long> reclaiming;                   // 正在回收的版本，由lock保护
+
+    // 等待回收的数据，回滚的事务写入的记为0
+    private static class Dead {
+        long uid;
+        long order;
+
+        Dead(long uid, long order) {
+            this.uid = uid;
+            this.order = order;
+        }
+    }
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
-        super(0);
         this.tm = tm;
         this.dm = dm;
         this.activeTransaction = new HashMap<>();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.deadVersions = new PriorityQueue<>((a, b) -> Long.compare(a.order, b.order));
+        this.deadChains = new PriorityQueue<>((a, b) -> Long.compare(a.order, b.order));
+        this.pinned = new HashMap<>();
+        this.reclaiming = new HashSet<>();
     }
 
     @Override
@@ -41,15 +65,9 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
         }
 
-        Entry entry = null;
-        try {
-            entry = super.get(uid); 
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return null;
-            } else {
-                throw e;
-            }
+        Entry entry = Entry.loadEntry(this, uid);
+        if(entry == null) {
+            return null;
         }
         try {
             if(Visibility.isVisible(tm, t, entry)) {
@@ -73,7 +91,39 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        long uid = dm.insert(xid, raw);
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            t.inserted.add(uid);
+        }
+        return uid;
+    }
+
+    @Override
+    public long insertOverflow(long xid, byte[] data) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        long uid = dm.insertOverflow(xid, data);
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            t.overflows.add(uid);
+        }
+        return uid;
+    }
+
+    @Override
+    public void dropOverflow(long xid, long uid) {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            t.dropped.add(uid);
+        }
     }
 
     @Override
@@ -85,56 +135,81 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.err != null) {
             throw t.err;
         }
-        Entry entry = null;
-        try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return false;
-            } else {
-                throw e;
-            }
+        //持有版本期间它不会被回收，之后还要改它的xmax
+        if(!pin(uid)) {
+            return false;
         }
         try {
-            if(!Visibility.isVisible(tm, t, entry)) {
+            Entry entry = Entry.loadEntry(this, uid);
+            if(entry == null) {
                 return false;
             }
-            Condition condition = null;
             try {
-                condition = lt.add(xid, uid);
-                //说明在等待
-                //等待获取锁，lt释放，即分配资源后才会成功
-                if(condition != null) {
-                    condition.await();
+                if(!Visibility.isVisible(tm, t, entry)) {
+                    return false;
+                }
+                Condition condition = null;
+                try {
+                    condition = lt.add(xid, uid);
+                    //说明在等待
+                    //等待获取锁，lt释放，即分配资源后才会成功
+                    if(condition != null) {
+                        condition.await();
+                    }
+                } catch(Exception e) {
+                    //说明发生死锁，自动回滚
+                    t.err = Error.ConcurrentUpdateException;
+                    internAbort(xid, true);
+                    t.autoAborted = true;
+                    throw t.err;
                 }
-            } catch(Exception e) {
-                //说明发生死锁，自动回滚
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
-            }
 
             
-            if(entry.getXmax() == xid) {
-                return false;
-            }
+                if(entry.getXmax() == xid) {
+                    return false;
+                }
 
-            if(Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
+                if(Visibility.isVersionSkip(tm, t, entry)) {
+                    t.err = Error.ConcurrentUpdateException;
+                    internAbort(xid, true);
+                    t.autoAborted = true;
+                    throw t.err;
+                }
+
+                entry.setXmax(xid);
+                if(xid != TransactionManagerImpl.SUPER_XID) {
+                    t.deleted.add(uid);
+                }
+                return true;
+
+            } finally {
+                entry.release();
             }
+        } finally {
+            unpin(uid);
+        }
+    }
 
-            entry.setXmax(xid);
+    // 正在回收的版本已没有事务能看到，不必再删
+    private boolean pin(long uid) {
+        lock.lock();
+        try {
+            if(reclaiming.contains(uid)) {
+                return false;
+            }
+            pinned.merge(uid, 1, Integer::sum);
             return true;
-
         } finally {
-            entry.release();
+            lock.unlock();
         }
     }
 
+    private void unpin(long uid) {
+        lock.lock();
+        pinned.computeIfPresent(uid, (k, v) -> v == 1 ? null : v - 1);
+        lock.unlock();
+    }
+
     @Override
     public long begin(int level) {
         //新建一个activeTx
@@ -144,6 +219,8 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             long xid = tm.begin();
             //具体生成在vm
             Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            clock ++;
+            t.seq = clock;
             activeTransaction.put(xid, t);
             return xid;
         } finally {
@@ -172,7 +249,20 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.unlock();
 
         lt.remove(xid);
+        //提交标记落盘前，事务的日志须先落盘，并发提交的事务在这里合并成一次force
+        dm.flushLog();
         tm.commit(xid);
+
+        lock.lock();
+        clock ++;
+        for(long uid : t.deleted) {
+            deadVersions.add(new Dead(uid, xid));
+        }
+        for(long uid : t.dropped) {
+            deadChains.add(new Dead(uid, clock));
+        }
+        lock.unlock();
+        vacuum();
     }
 
     @Override
@@ -196,24 +286,68 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lt.remove(xid);
         //将tx状态修改为已经回滚
         tm.abort(xid);
-    }
-
-    public void releaseEntry(Entry entry) {
-        super.release(entry.getUid());
-    }
-
-    @Override
-    protected Entry getForCache(long uid) throws Exception {
-        Entry entry = Entry.loadEntry(this, uid);
-        if(entry == null) {
-            throw Error.NullEntryException;
+        //插入的数据和溢出数据对谁都不可见了，直接回收；删除作废，被删的版本照旧有效
+        lock.lock();
+        for(long uid : t.inserted) {
+            deadVersions.add(new Dead(uid, 0));
+        }
+        for(long uid : t.overflows) {
+            deadChains.add(new Dead(uid, 0));
         }
-        return entry;
+        lock.unlock();
+        vacuum();
     }
 
-    @Override
-    protected void releaseForCache(Entry entry) {
-        entry.remove();
+    /**
+     * 回收已经没有事务能看到的版本：删除者已提交，且早于所有活跃的可重复读事务的horizon
+     * 之后开始的事务的xid都大于删除者，删除者也不在它们的快照里，同样看不到
+     * 溢出数据在读出行之后才按需读取，读已提交的事务可能先拿到行、删除者提交后才去读
+     * 所以要等删除者提交时还活跃的事务都结束，即所有活跃事务开始时的时钟都晚于提交时的时钟
+     * delete可能在删除者提交前读到版本，等锁之后仍会改它的xmax，它持有的版本先放回队列，等下一次事务结束再试
+     */
+    private void vacuum() {
+        List<Dead> versions = new ArrayList<>();
+        List<Dead> chains = new ArrayList<>();
+        List<Dead> busy = new ArrayList<>();
+        lock.lock();
+        try {
+            long horizon = Long.MAX_VALUE;
+            long oldest = Long.MAX_VALUE;
+            for(Transaction t : activeTransaction.values()) {
+                horizon = Math.min(horizon, t.horizon);
+                if(t.xid != TransactionManagerImpl.SUPER_XID) {
+                    oldest = Math.min(oldest, t.seq);
+                }
+            }
+            while(!deadVersions.isEmpty() && deadVersions.peek().order < horizon) {
+                Dead d = deadVersions.poll();
+                if(pinned.containsKey(d.uid)) {
+                    busy.add(d);
+                } else {
+                    reclaiming.add(d.uid);
+                    versions.add(d);
+                }
+            }
+            deadVersions.addAll(busy);
+            while(!deadChains.isEmpty() && deadChains.peek().order < oldest) {
+                chains.add(deadChains.poll());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for(Dead d : versions) {
+            dm.free(d.uid);
+        }
+        for(Dead d : chains) {
+            dm.freeOverflow(d.uid);
+        }
+        if(!versions.isEmpty()) {
+            lock.lock();
+            for(Dead d : versions) {
+                reclaiming.remove(d.uid);
+            }
+            lock.unlock();
+        }
     }
     
 }
@@ -6,12 +6,17 @@ public class Error {
     public static final Exception FileExistsException = new RuntimeException("File already exists!");
     public static final Exception FileNotExistsException = new RuntimeException("File does not exists!");
     public static final Exception FileCannotRWException = new RuntimeException("File cannot read or write!");
+    public static final Exception FileInUseException = new RuntimeException("File is already opened by another instance!");
 
     // dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception BadPageMapException = new RuntimeException("Bad page map file!");
+    public static final Exception CorruptedPageException = new RuntimeException("Corrupted page!");
+    public static final Exception BadPageFormatException = new RuntimeException("Unsupported page format!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -43,4 +48,6 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidPageCacheModeException = new RuntimeException("Invalid page cache mode!");
+    public static final Exception InvalidExtentException = new RuntimeException("Invalid extent size!");
 }
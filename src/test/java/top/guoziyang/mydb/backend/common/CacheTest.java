@@ -3,6 +3,9 @@ package top.guoziyang.mydb.backend.common;
 import java.security.SecureRandom;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -31,6 +34,208 @@ public class CacheTest {
         }
     }
 
+    @Test
+    public void testCacheConcurrent() throws Exception {
+        // 真正并发地在少量key上命中、缺失、驱逐，覆盖分片之间的驱逐
+        MockCache cache = new MockCache();
+        int threads = 16;
+        CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                for(int i = 0; i < 20000; i ++) {
+                    long uid = Math.abs(random.nextInt() % 120);
+                    long h = 0;
+                    try {
+                        h = cache.get(uid);
+                    } catch (Exception e) {
+                        if(e == Error.CacheFullException) continue;
+                        Panic.panic(e);
+                    }
+                    assert h == uid;
+                    cache.release(h);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+    }
+
+    @Test
+    public void testScanResistance() throws Exception {
+        MockCache cache = new MockCache();
+        long cold = 100000;
+        // 热点key第二次被加载时已在幽灵队列中，进入保护区
+        for(int round = 0; round < 3; round ++) {
+            for(long k = 0; k < 10; k ++) {
+                cache.release(cache.get(k));
+            }
+            for(int i = 0; i < 60; i ++) {
+                cache.release(cache.get(cold ++));
+            }
+        }
+        for(long k = 0; k < 10; k ++) {
+            cache.release(cache.get(k));
+        }
+
+        // 一次性扫描大量只访问一次的key
+        for(int i = 0; i < 10000; i ++) {
+            cache.release(cache.get(cold ++));
+        }
+
+        // 热点key没有被冲掉
+        int loads = cache.loads.get();
+        for(long k = 0; k < 10; k ++) {
+            cache.release(cache.get(k));
+        }
+        assert cache.loads.get() == loads;
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        MockCache cache = new MockCache();
+        // 引用归零的资源会被驱逐，不会因为缓存满而失败
+        for(long i = 0; i < 200; i ++) {
+            long h = cache.get(i);
+            assert h == i;
+            cache.release(h);
+        }
+        assert cache.evicted == 150;
+
+        // 被引用的资源不可驱逐
+        for(long i = 1000; i < 1050; i ++) {
+            cache.get(i);
+        }
+        try {
+            cache.get(2000);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.CacheFullException;
+        }
+        cache.release(1000);
+        assert cache.get(2000) == 2000;
+    }
+
+    @Test
+    public void testConcurrentMisses() throws Exception {
+        // 64个线程同时缺失同一个key，只应加载一次，其余线程等待加载结果
+        int threads = 64;
+        MockCache cache = new MockCache(5);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                try {
+                    barrier.await();
+                    long h = cache.get(7);
+                    assert h == 7;
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        for(int i = 0; i < threads; i ++) {
+            cache.release(7);
+        }
+        assert cache.loads.get() == 1;
+
+        // 不同key的缺失同时加载：每次加载等到所有加载都已开始才返回，加载若被串行化就等不到
+        int keys = 8;
+        CountDownLatch started = new CountDownLatch(keys);
+        AtomicInteger overlapped = new AtomicInteger(0);
+        AbstractCache<Long> slow = new AbstractCache<Long>(50) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                started.countDown();
+                if(started.await(5, TimeUnit.SECONDS)) {
+                    overlapped.incrementAndGet();
+                }
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {}
+        };
+        CountDownLatch loaded = new CountDownLatch(keys);
+        for(long k = 0; k < keys; k ++) {
+            long key = k;
+            new Thread(() -> {
+                try {
+                    slow.release(slow.get(key));
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                loaded.countDown();
+            }).start();
+        }
+        loaded.await();
+        assert overlapped.get() == keys;
+    }
+
+    @Test
+    public void testWriteBackOutsideLock() throws Exception {
+        // 写回时阻塞，模拟驱逐脏页时的刷日志和写文件
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        AbstractCache<Long> cache = new AbstractCache<Long>(50) {
+            @Override
+            protected Long getForCache(long key) {
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {
+                writing.countDown();
+                try {
+                    resume.await();
+                } catch(InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+        };
+        for(long k = 0; k < 50; k ++) {
+            cache.get(k);
+            cache.release(k);
+        }
+        CountDownLatch loaded = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                cache.release(cache.get(1000));
+            } catch(Exception e) {
+                Panic.panic(e);
+            }
+            loaded.countDown();
+        }).start();
+        assert writing.await(5, TimeUnit.SECONDS);
+
+        // 写回期间其余的key照常命中，不被驱逐所在分片的锁挡住；正在驱逐的key不算在缓存中
+        int[] present = new int[1];
+        int[] evicting = new int[1];
+        CountDownLatch probed = new CountDownLatch(1);
+        new Thread(() -> {
+            for(long k = 0; k < 50; k ++) {
+                if(cache.getIfPresent(k) != null) {
+                    present[0] ++;
+                    cache.release(k);
+                }
+                if(cache.isEvicting(k)) {
+                    evicting[0] ++;
+                }
+            }
+            probed.countDown();
+        }).start();
+        assert probed.await(5, TimeUnit.SECONDS);
+        assert present[0] == 49;
+        assert evicting[0] == 1;
+        assert loaded.getCount() == 1;
+        resume.countDown();
+        assert loaded.await(5, TimeUnit.SECONDS);
+        for(long k = 0; k < 50; k ++) {
+            assert !cache.isEvicting(k);
+        }
+    }
+
     private void work() {
         for(int i = 0; i < 1000; i++) {
             long uid = random.nextInt();
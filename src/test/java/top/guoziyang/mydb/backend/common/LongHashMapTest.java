@@ -0,0 +1,40 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongHashMapTest {
+
+    static Random random = new SecureRandom();
+
+    @Test
+    public void testLongHashMap() {
+        LongHashMap<Long> map = new LongHashMap<>();
+        Map<Long, Long> mock = new HashMap<>();
+        for(int i = 0; i < 100000; i ++) {
+            // key范围较小，保证put、remove会频繁命中已有元素
+            long key = random.nextInt(2000);
+            int op = Math.abs(random.nextInt() % 3);
+            if(op == 0) {
+                assert equals(map.put(key, (long)i), mock.put(key, (long)i));
+            } else if(op == 1) {
+                assert equals(map.remove(key), mock.remove(key));
+            } else {
+                assert equals(map.get(key), mock.get(key));
+            }
+            assert map.size() == mock.size();
+        }
+        for(Map.Entry<Long, Long> e : mock.entrySet()) {
+            assert equals(map.get(e.getKey()), e.getValue());
+        }
+        assert map.values().size() == mock.size();
+    }
+
+    private boolean equals(Long a, Long b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -1,17 +1,35 @@
 package top.guoziyang.mydb.backend.common;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class MockCache extends AbstractCache<Long> {
 
+    public int evicted = 0;
+    public AtomicInteger loads = new AtomicInteger(0);
+    private long loadMillis;
+
     public MockCache() {
+        this(0);
+    }
+
+    // loadMillis 模拟一次缺失时读取数据源的耗时
+    public MockCache(long loadMillis) {
         super(50);
+        this.loadMillis = loadMillis;
     }
 
     @Override
     protected Long getForCache(long key) throws Exception {
+        loads.incrementAndGet();
+        if(loadMillis > 0) {
+            Thread.sleep(loadMillis);
+        }
         return key;
     }
 
     @Override
-    protected void releaseForCache(Long obj) {}
+    protected void releaseForCache(Long obj) {
+        evicted ++;
+    }
     
 }
@@ -1,9 +1,12 @@
 package top.guoziyang.mydb.backend.dm;
 
 import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
@@ -14,11 +17,18 @@ import org.junit.Test;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.dm.logger.LoggerImpl;
+import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheImpl;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheOptions;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
+import top.guoziyang.mydb.common.Error;
 
 public class DataManagerTest {
 
@@ -109,7 +119,8 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TESTDMSingle.db").delete();
-        new File("/tmp/TESTDMSingle.log").delete();
+        Logger.remove("/tmp/TESTDMSingle");
+        new File("/tmp/TESTDMSingle.fsm").delete();
     }
 
     @Test
@@ -129,7 +140,520 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TestDMMulti.db").delete();
-        new File("/tmp/TestDMMulti.log").delete();
+        Logger.remove("/tmp/TestDMMulti");
+        new File("/tmp/TestDMMulti.fsm").delete();
+    }
+
+    @Test
+    public void testPageCountInPageOne() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMPageCount");
+        DataManager dm = DataManager.create("/tmp/TestDMPageCount", PageCache.PAGE_SIZE*10, tm);
+        for(int i = 0; i < 100; i ++) {
+            dm.insert(0, RandomUtil.randomBytes(1000));
+        }
+        int pages = ((DataManagerImpl)dm).pc.getPageNumber();
+        dm.close();
+
+        // 模拟残留的预扩展部分，正常关闭后以PageOne记录的页数为准
+        try(RandomAccessFile raf = new RandomAccessFile("/tmp/TestDMPageCount.db", "rw")) {
+            raf.setLength(raf.length() + PageCache.PAGE_SIZE * 16);
+        }
+        dm = DataManager.open("/tmp/TestDMPageCount", PageCache.PAGE_SIZE*10, tm);
+        assert ((DataManagerImpl)dm).pc.getPageNumber() == pages;
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMPageCount.db").delete();
+        Logger.remove("/tmp/TestDMPageCount");
+        new File("/tmp/TestDMPageCount.xid").delete();
+        new File("/tmp/TestDMPageCount.fsm").delete();
+    }
+
+    @Test
+    public void testPageSize() throws Exception {
+        checkPageSize(PageCache.MIN_PAGE_SIZE, 3000);
+        checkPageSize(PageCache.MAX_PAGE_SIZE, 5000);
+    }
+
+    private void checkPageSize(int pageSize, int dataSize) throws Exception {
+        PageCacheOptions opts = new PageCacheOptions();
+        opts.pageSize = pageSize;
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMPageSize");
+        DataManager dm = DataManager.create("/tmp/TestDMPageSize", pageSize*10, tm, opts);
+        assert dm.getPageSize() == pageSize;
+        try {
+            dm.insert(0, new byte[pageSize]);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.DataTooLargeException;
+        }
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        int maxSlot = 0;
+        for(int i = 0; i < 50; i ++) {
+            byte[] data = RandomUtil.randomBytes(dataSize);
+            long uid = dm.insert(0, data);
+            maxSlot = Math.max(maxSlot, (int)(uid & 0xFFFF));
+            uids.add(uid);
+            datas.add(data);
+        }
+        // 大页中一页放下多个dataitem，数据位于32KB之后的偏移
+        assert (maxSlot > 0) == (pageSize > 0x8000);
+        dm.close();
+
+        // 打开时的页大小以PageOne中记录的为准
+        dm = DataManager.open("/tmp/TestDMPageSize", pageSize*10, tm);
+        assert dm.getPageSize() == pageSize;
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(sa.raw, sa.start, sa.end, datas.get(i), 0, dataSize);
+            di.release();
+        }
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMPageSize.db").delete();
+        Logger.remove("/tmp/TestDMPageSize");
+        new File("/tmp/TestDMPageSize.xid").delete();
+        new File("/tmp/TestDMPageSize.fsm").delete();
+    }
+
+    @Test
+    public void testReclaimInvalid() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMReclaim");
+        DataManager dm = DataManager.create("/tmp/TestDMReclaim", PageCache.PAGE_SIZE*10, tm);
+        long xid = tm.begin();
+        List<Long> aborted = new ArrayList<>();
+        for(int i = 0; i < 100; i ++) {
+            aborted.add(dm.insert(xid, RandomUtil.randomBytes(1000)));
+        }
+        int pages = ((DataManagerImpl)dm).pc.getPageNumber();
+        crash(dm);
+
+        // 恢复时撤销未提交的插入，其空间在之后的插入中整理收回
+        dm = DataManager.open("/tmp/TestDMReclaim", PageCache.PAGE_SIZE*10, tm);
+        for(long uid : aborted) {
+            assert dm.read(uid) == null;
+        }
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        xid = tm.begin();
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm.commit(xid);
+        assert ((DataManagerImpl)dm).pc.getPageNumber() == pages;
+        crash(dm);
+
+        // 回收记录在日志中，再次恢复时不会把撤销的数据放回，覆盖新插入的数据
+        dm = DataManager.open("/tmp/TestDMReclaim", PageCache.PAGE_SIZE*10, tm);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(sa.raw, sa.start, sa.end, datas.get(i), 0, 1000);
+            di.release();
+        }
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMReclaim.db").delete();
+        Logger.remove("/tmp/TestDMReclaim");
+        new File("/tmp/TestDMReclaim.xid").delete();
+        new File("/tmp/TestDMReclaim.fsm").delete();
+    }
+
+    @Test
+    public void testFreeAborted() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMFreeAborted");
+        DataManager dm = DataManager.create("/tmp/TestDMFreeAborted", PageCache.PAGE_SIZE*10, tm);
+        long xid = tm.begin();
+        List<Long> aborted = new ArrayList<>();
+        for(int i = 0; i < 100; i ++) {
+            aborted.add(dm.insert(xid, RandomUtil.randomBytes(1000)));
+        }
+        int pages = ((DataManagerImpl)dm).pc.getPageNumber();
+        tm.abort(xid);
+        for(long uid : aborted) {
+            dm.free(uid);
+        }
+
+        // 回滚后不用重启，空间就能被之后的插入用上
+        for(long uid : aborted) {
+            assert dm.read(uid) == null;
+        }
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        xid = tm.begin();
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm.commit(xid);
+        assert ((DataManagerImpl)dm).pc.getPageNumber() == pages;
+        crash(dm);
+
+        // 回收记了日志，恢复后新数据不会被重做的旧插入覆盖
+        dm = DataManager.open("/tmp/TestDMFreeAborted", PageCache.PAGE_SIZE*10, tm);
+        for(long uid : aborted) {
+            assert dm.read(uid) == null;
+        }
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(sa.raw, sa.start, sa.end, datas.get(i), 0, 1000);
+            di.release();
+        }
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMFreeAborted.db").delete();
+        Logger.remove("/tmp/TestDMFreeAborted");
+        new File("/tmp/TestDMFreeAborted.xid").delete();
+        new File("/tmp/TestDMFreeAborted.fsm").delete();
+    }
+
+    @Test
+    public void testFreeSpaceMap() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMFSM");
+        DataManager dm = DataManager.create("/tmp/TestDMFSM", PageCache.PAGE_SIZE*10, tm);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm.insert(0, data));
+            datas.add(data);
+        }
+        int pages = ((DataManagerImpl)dm).pc.getPageNumber();
+        dm.close();
+        assert new File("/tmp/TestDMFSM.fsm").exists();
+
+        // 正常关闭后按表填充，最后一页的剩余空间仍能用上
+        dm = DataManager.open("/tmp/TestDMFSM", PageCache.PAGE_SIZE*10, tm);
+        assert ((DataManagerImpl)dm).fsm.getLogPosition() == ((DataManagerImpl)dm).logger.length();
+        for(int i = 0; i < 3; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm.insert(0, data));
+            datas.add(data);
+        }
+        assert ((DataManagerImpl)dm).pc.getPageNumber() == pages;
+        for(int i = 0; i < 20; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm.insert(0, data));
+            datas.add(data);
+        }
+        pages = ((DataManagerImpl)dm).pc.getPageNumber();
+        crash(dm);
+
+        // 崩溃后表已过时，之后的日志涉及的页重新扫描
+        dm = DataManager.open("/tmp/TestDMFSM", PageCache.PAGE_SIZE*10, tm);
+        for(int i = 0; i < 3; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm.insert(0, data));
+            datas.add(data);
+        }
+        assert ((DataManagerImpl)dm).pc.getPageNumber() == pages;
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(sa.raw, sa.start, sa.end, datas.get(i), 0, 1000);
+            di.release();
+        }
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMFSM.db").delete();
+        Logger.remove("/tmp/TestDMFSM");
+        new File("/tmp/TestDMFSM.xid").delete();
+        new File("/tmp/TestDMFSM.fsm").delete();
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMOverflow");
+        DataManager dm = DataManager.create("/tmp/TestDMOverflow", PageCache.PAGE_SIZE*10, tm);
+        byte[] big = RandomUtil.randomBytes(100000);
+        byte[] exact = RandomUtil.randomBytes(((DataManagerImpl)dm).overflowChunkSize() * 2);
+        long small = dm.insert(0, RandomUtil.randomBytes(100));
+        long u0 = dm.insertOverflow(0, big);
+        long u1 = dm.insertOverflow(0, exact);
+        assert Arrays.equals(dm.readOverflow(u0).readAllBytes(), big);
+        assert Arrays.equals(dm.readOverflow(u1).readAllBytes(), exact);
+
+        // 按块读出，只读到第一块时不会读后面的页
+        try(InputStream in = dm.readOverflow(u0)) {
+            byte[] head = new byte[1000];
+            assert in.read(head) == 1000;
+            assert Arrays.equals(head, 0, 1000, big, 0, 1000);
+        }
+        dm.close();
+
+        dm = DataManager.open("/tmp/TestDMOverflow", PageCache.PAGE_SIZE*10, tm);
+        assert Arrays.equals(dm.readOverflow(u0).readAllBytes(), big);
+        assert Arrays.equals(dm.readOverflow(u1).readAllBytes(), exact);
+        DataItem di = dm.read(small);
+        assert di != null;
+        di.release();
+
+        // 未提交就崩溃，溢出块和普通数据一样被撤销
+        long xid = tm.begin();
+        long u2 = dm.insertOverflow(xid, RandomUtil.randomBytes(30000));
+        crash(dm);
+        dm = DataManager.open("/tmp/TestDMOverflow", PageCache.PAGE_SIZE*10, tm);
+        assert dm.read(u2) == null;
+        assert Arrays.equals(dm.readOverflow(u0).readAllBytes(), big);
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMOverflow.db").delete();
+        Logger.remove("/tmp/TestDMOverflow");
+        new File("/tmp/TestDMOverflow.xid").delete();
+        new File("/tmp/TestDMOverflow.fsm").delete();
+    }
+
+    @Test
+    public void testInsertBatch() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMBatch");
+        DataManager dm = DataManager.create("/tmp/TestDMBatch", PageCache.PAGE_SIZE*10, tm);
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 1000; i ++) {
+            datas.add(RandomUtil.randomBytes(100));
+        }
+        List<Long> uids = dm.insertBatch(0, datas);
+        assert uids.size() == datas.size();
+
+        long xid = tm.begin();
+        List<Long> aborted = dm.insertBatch(xid, datas.subList(0, 300));
+        crash(dm);
+
+        // 每页一条日志
+        Logger lg = Logger.open("/tmp/TestDMBatch");
+        int logs = 0;
+        while(lg.next() != null) logs ++;
+        lg.close();
+        assert logs <= ((DataManagerImpl)dm).pc.getPageNumber();
+
+        // 恢复时按批重做、撤销
+        dm = DataManager.open("/tmp/TestDMBatch", PageCache.PAGE_SIZE*10, tm);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(sa.raw, sa.start, sa.end, datas.get(i), 0, 100);
+            di.release();
+        }
+        for(long uid : aborted) {
+            assert dm.read(uid) == null;
+        }
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMBatch.db").delete();
+        Logger.remove("/tmp/TestDMBatch");
+        new File("/tmp/TestDMBatch.xid").delete();
+        new File("/tmp/TestDMBatch.fsm").delete();
+    }
+
+    @Test
+    public void testDataItemReuse() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMReuse");
+        DataManager dm = DataManager.create("/tmp/TestDMReuse", PageCache.PAGE_SIZE*10, tm);
+        byte[] d0 = RandomUtil.randomBytes(100), d1 = RandomUtil.randomBytes(200);
+        long u0 = dm.insert(0, d0), u1 = dm.insert(0, d1);
+
+        // 只读不分配修改前的镜像，释放后的句柄被下一次读取复用
+        DataItem di = dm.read(u0);
+        assert di.getOldRaw() == null;
+        SubArray sa = di.data();
+        assert sa == di.data();
+        assert Arrays.equals(sa.raw, sa.start, sa.end, d0, 0, 100);
+        di.release();
+        DataItem di1 = dm.read(u1);
+        assert di1 == di;
+        sa = di1.data();
+        assert Arrays.equals(sa.raw, sa.start, sa.end, d1, 0, 200);
+
+        di1.before();
+        assert di1.getOldRaw().length == 203;
+        sa.raw[sa.start] ++;
+        di1.unBefore();
+        assert Arrays.equals(sa.raw, sa.start, sa.end, d1, 0, 200);
+        di1.release();
+
+        // 同一uid的两个句柄各自持有页面，共用一把锁
+        DataItem a = dm.read(u0), b = dm.read(u0);
+        assert a != b;
+        PageCache pc = ((DataManagerImpl)dm).pc;
+        assert pc.isShared(a.page());
+        a.lock();
+        Thread t = new Thread(() -> {
+            b.rLock();
+            b.rUnLock();
+        });
+        t.start();
+        t.join(200);
+        assert t.isAlive();
+        a.unlock();
+        t.join();
+        b.release();
+        assert !pc.isShared(a.page());
+        a.release();
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMReuse.db").delete();
+        Logger.remove("/tmp/TestDMReuse");
+        new File("/tmp/TestDMReuse.xid").delete();
+        new File("/tmp/TestDMReuse.fsm").delete();
+    }
+
+    @Test
+    public void testInsertConcurrent() throws Exception {
+        insertConcurrent(16, 8000);
+    }
+
+    @Test
+    public void testInsertScaling() throws Exception {
+        // 插入吞吐随线程数的变化，只打印，不对耗时做断言；每一轮照样检查结果
+        for(int threads = 1; threads <= 32; threads *= 2) {
+            long nanos = insertConcurrent(threads, 8000);
+            System.out.println(threads + " threads: " + (8000 * 1000000000L / Math.max(nanos, 1)) + " inserts/s");
+        }
+    }
+
+    // 多线程同时插入，各自从pIndex取页，uid不重复、数据完整，也不会因为争抢多开出很多页，返回插入用的时间
+    private long insertConcurrent(int threads, int total) throws Exception {
+        int size = 100;
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMConcurrent");
+        DataManager dm = DataManager.create("/tmp/TestDMConcurrent", PageCache.PAGE_SIZE*1000, tm);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        CountDownLatch cdl = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < total / threads; i ++) {
+                        byte[] data = RandomUtil.randomBytes(size);
+                        long uid = dm.insert(0, data);
+                        synchronized(uids) {
+                            uids.add(uid);
+                            datas.add(data);
+                        }
+                    }
+                } catch(Exception e) {
+                    Panic.panic(e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        long nanos = System.nanoTime() - begin;
+
+        int n = total / threads * threads;
+        assert new HashSet<>(uids).size() == n;
+        for(int i = 0; i < n; i ++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(sa.raw, sa.start, sa.end, datas.get(i), 0, size);
+            di.release();
+        }
+        // 每页最多因空闲不足一个区间少放一条，另外每个线程最多各开一页没放满
+        int perPage = PageX.maxFreeSpace(dm.getPageSize()) / (DataItem.HEAD_SIZE + size + 4);
+        int pages = ((DataManagerImpl)dm).pc.getPageNumber() - 1;
+        assert pages <= n / (perPage - 1) + 1 + threads;
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMConcurrent.db").delete();
+        Logger.remove("/tmp/TestDMConcurrent");
+        new File("/tmp/TestDMConcurrent.xid").delete();
+        new File("/tmp/TestDMConcurrent.fsm").delete();
+        return nanos;
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/TestDMCheckpoint");
+        // 日志段取最小，检查点之前的插入所在的段会被删掉；缓存放得下所有页，页面只能由检查点写出
+        PageCache pc = PageCache.create("/tmp/TestDMCheckpoint", PageCache.PAGE_SIZE*100, new PageCacheOptions());
+        Logger lg = Logger.create("/tmp/TestDMCheckpoint", LoggerImpl.MIN_SEGMENT_SIZE);
+        DataManagerImpl dmi = new DataManagerImpl(pc, lg, tm, FreeSpaceMap.create("/tmp/TestDMCheckpoint", pc.getPageSize()));
+        dmi.initPageOne();
+        dmi.checkpointer.start();
+        DataManager dm = dmi;
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 300; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm.insert(0, data));
+            datas.add(data);
+        }
+        // 检查点之前开始的两个事务，一个之后提交，一个到崩溃时仍未提交
+        long committed = tm.begin();
+        long pending = tm.begin();
+        byte[] kept = RandomUtil.randomBytes(1000);
+        long keptUid = dm.insert(committed, kept);
+        long pendingUid = dm.insert(pending, RandomUtil.randomBytes(1000));
+        DataItem di = dm.read(uids.get(0));
+        di.before();
+        SubArray sa = di.data();
+        Arrays.fill(sa.raw, sa.start, sa.end, (byte)1);
+        di.after(pending);
+        di.release();
+
+        long redoLsn = ((DataManagerImpl)dm).logger.length();
+        ((DataManagerImpl)dm).checkpoint();
+        assert ((DataManagerImpl)dm).firstLsns.containsKey(pending);
+        assert ((DataManagerImpl)dm).fsm.getLogPosition() == redoLsn;
+        assert lg.start() > 0;
+
+        tm.commit(committed);
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm.insert(0, data));
+            datas.add(data);
+        }
+        dm.flushLog();
+        crash(dm);
+
+        // 崩溃时缓存中的脏页没有写回，检查点之前的插入日志已删除，只能靠检查点写出的页面
+        // 从检查点开始重做，未提交事务在检查点之前的修改也被撤销
+        // 空闲空间表是检查点时写出的，只需扫描之后的日志涉及的页
+        dm = DataManager.open("/tmp/TestDMCheckpoint", PageCache.PAGE_SIZE*100, tm);
+        assert ((DataManagerImpl)dm).fsm.getLogPosition() == redoLsn;
+        assert dm.read(pendingUid) == null;
+        di = dm.read(keptUid);
+        sa = di.data();
+        assert Arrays.equals(sa.raw, sa.start, sa.end, kept, 0, 1000);
+        di.release();
+        for(int i = 0; i < uids.size(); i ++) {
+            di = dm.read(uids.get(i));
+            sa = di.data();
+            assert Arrays.equals(sa.raw, sa.start, sa.end, datas.get(i), 0, 1000);
+            di.release();
+        }
+        // 恢复中改动的页面由之后的检查点写回
+        ((DataManagerImpl)dm).checkpoint();
+        dm.close();
+        tm.close();
+
+        new File("/tmp/TestDMCheckpoint.db").delete();
+        Logger.remove("/tmp/TestDMCheckpoint");
+        new File("/tmp/TestDMCheckpoint.xid").delete();
+        new File("/tmp/TestDMCheckpoint.fsm").delete();
+    }
+
+    // 不写入正常关闭的标记，模拟崩溃
+    private void crash(DataManager dm) {
+        DataManagerImpl dmi = (DataManagerImpl)dm;
+        dmi.checkpointer.close();
+        dmi.pageOne.release();
+        dmi.logger.close();
+        ((PageCacheImpl)dmi.pc).crash();
     }
 
     @Test
@@ -150,12 +674,17 @@ public class DataManagerTest {
                 new Thread(r).run();
             }
             cdl.await();
+            // 日志不再随追加落盘，崩溃前刷出的部分才能恢复
+            dm0.flushLog();
+            crash(dm0);
         }
+        dm0 = DataManager.open("/tmp/TestRecoverySimple", PageCache.PAGE_SIZE*10, tm0);
         dm0.close(); mdm.close();
         
         new File("/tmp/TestRecoverySimple.db").delete();
-        new File("/tmp/TestRecoverySimple.log").delete();
+        Logger.remove("/tmp/TestRecoverySimple");
         new File("/tmp/TestRecoverySimple.xid").delete();
+        new File("/tmp/TestRecoverySimple.fsm").delete();
 
     }
 }
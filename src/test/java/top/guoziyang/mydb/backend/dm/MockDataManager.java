@@ -1,6 +1,10 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
@@ -9,6 +13,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.MockDataItem;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 
 public class MockDataManager implements DataManager {
 
@@ -51,6 +56,54 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for(byte[] data : datas) {
+            uids.add(insert(xid, data));
+        }
+        return uids;
+    }
+
+    @Override
+    public long insertOverflow(long xid, byte[] data) throws Exception {
+        return insert(xid, data);
+    }
+
+    @Override
+    public InputStream readOverflow(long uid) {
+        SubArray sa = cache.get(uid).data();
+        return new ByteArrayInputStream(sa.raw, sa.start, sa.end - sa.start);
+    }
+
+    @Override
+    public void free(long uid) {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void freeOverflow(long uid) {
+        free(uid);
+    }
+
+    @Override
+    public int getPageSize() {
+        return PageCache.PAGE_SIZE;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return 0;
+    }
+
+    @Override
+    public void flushLog() {}
+
     @Override
     public void close() {}
     
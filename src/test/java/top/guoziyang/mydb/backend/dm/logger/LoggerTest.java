@@ -1,9 +1,18 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import top.guoziyang.mydb.backend.utils.RandomUtil;
+
 public class LoggerTest {
     @Test
     public void testLogger() {
@@ -43,6 +52,131 @@ public class LoggerTest {
 
         lg.close();
 
-        assert new File("/tmp/logger_test.log").delete();
+        assert Logger.remove("/tmp/logger_test");
+    }
+
+    @Test
+    public void testConcurrentLog() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_group_test");
+        int threads = 16, per = 200;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            final int id = t;
+            new Thread(() -> {
+                for(int i = 0; i < per; i ++) {
+                    lg.log((id + "-" + i).getBytes());
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        lg.close();
+
+        // 组提交后所有日志都在
+        Logger lg1 = Logger.open("/tmp/logger_group_test");
+        lg1.rewind();
+        Set<String> seen = new HashSet<>();
+        byte[] log;
+        while((log = lg1.next()) != null) {
+            assert seen.add(new String(log));
+        }
+        assert seen.size() == threads * per;
+        lg1.close();
+
+        assert Logger.remove("/tmp/logger_group_test");
+    }
+
+    @Test
+    public void testBadTail() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_tail_test");
+        lg.log("aaa".getBytes());
+        lg.log("bbb".getBytes());
+        long end = lg.length();
+        lg.close();
+
+        // 末尾写了一半的日志和全为0的空洞都应被截掉
+        try(RandomAccessFile raf = new RandomAccessFile("/tmp/logger_tail_test.log.0", "rw")) {
+            raf.seek(end);
+            raf.write(new byte[64]);
+            raf.write(new byte[] {0, 0, 0, 10, 1, 2, 3});
+        }
+        lg = Logger.open("/tmp/logger_tail_test");
+        assert lg.length() == end;
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        assert Logger.remove("/tmp/logger_tail_test");
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        String path = "/tmp/logger_seg_test";
+        int segSize = LoggerImpl.MIN_SEGMENT_SIZE;
+        Logger lg = Logger.create(path, segSize);
+        List<byte[]> logs = new ArrayList<>();
+        List<Long> lsns = new ArrayList<>();
+        for(int i = 0; i < 200; i ++) {
+            byte[] data = RandomUtil.randomBytes(5000 + i * 37);
+            logs.add(data);
+            lsns.add(lg.log(data));
+        }
+        long end = lg.length();
+        lg.close();
+
+        // 日志不跨段，跨段处的补0被跳过
+        assert LoggerImpl.listSegments(path).size() == (int)(end / segSize) + 1;
+        lg = Logger.open(path);
+        assert lg.length() == end;
+        lg.rewind();
+        for(byte[] data : logs) {
+            assert Arrays.equals(lg.next(), data);
+        }
+        assert lg.next() == null;
+
+        // 删除前面的段，剩下的日志照常读出，旧段留作备用
+        long cut = lsns.get(150);
+        lg.removeBefore(cut);
+        assert lg.start() == cut / segSize * segSize;
+        assert LoggerImpl.listSegments(path).get(0) == cut / segSize;
+        assert new File(path + ".log.spare0").exists();
+        lg.rewind();
+        int first = 0;
+        while(lsns.get(first) <= lg.start()) {
+            first ++;
+        }
+        for(int i = first; i < logs.size(); i ++) {
+            assert Arrays.equals(lg.next(), logs.get(i));
+        }
+        assert lg.next() == null;
+
+        // 写满当前段后，新段由备用的旧段改名得到，残留的旧日志不会被读成新日志
+        byte[] more = RandomUtil.randomBytes(segSize / 2);
+        long lsn = 0;
+        for(int i = 0; i < 4; i ++) {
+            lsn = lg.log(more);
+        }
+        lg.flush(lsn);
+        lg.close();
+        assert !new File(path + ".log.spare0").exists();
+        lg = Logger.open(path);
+        assert lg.length() == lsn;
+        assert lg.start() == cut / segSize * segSize;
+        lg.close();
+
+        // 段中间的坏尾被截掉，之后的段删除
+        try(RandomAccessFile raf = new RandomAccessFile(path + ".log." + (lsn / segSize), "rw")) {
+            raf.seek(lsn % segSize - 10);
+            raf.write(new byte[] {1, 2, 3});
+        }
+        lg = Logger.open(path);
+        // 每段只放得下一条，坏掉的是最后一段唯一的一条，日志结束在上一段的那条之后
+        assert lg.length() == lsn - segSize;
+        assert !new File(path + ".log." + (lsn / segSize)).exists();
+        lg.close();
+
+        assert Logger.remove(path);
     }
 }
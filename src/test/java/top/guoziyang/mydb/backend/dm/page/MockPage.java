@@ -46,5 +46,34 @@ public class MockPage implements Page {
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public int getOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getSize() {
+        return data.length;
+    }
+
+    @Override
+    public long getLsn() {
+        return 0;
+    }
+
+    @Override
+    public void setLsn(long lsn) {}
+
+    @Override
+    public void beginUpdate() {}
+
+    @Override
+    public void endUpdate() {}
+
+    @Override
+    public boolean isUpdating() {
+        return false;
+    }
     
 }
@@ -0,0 +1,79 @@
+package top.guoziyang.mydb.backend.dm.page;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.utils.RandomUtil;
+
+public class PageXTest {
+    @Test
+    public void testInsertFreeCompact() {
+        Page pg = MockPage.newMockPage(2, PageX.initRaw(PageCache.PAGE_SIZE));
+        assert PageX.getFreeSpace(pg) == PageX.maxFreeSpace(PageCache.PAGE_SIZE);
+
+        byte[][] raws = new byte[20][];
+        for(int i = 0; i < raws.length; i ++) {
+            raws[i] = RandomUtil.randomBytes(300);
+            assert PageX.insert(pg, raws[i]) == i;
+        }
+        for(int i = 0; i < raws.length; i += 2) {
+            PageX.free(pg, i);
+        }
+        int free = PageX.getFreeSpace(pg);
+        int contiguous = PageX.getContiguousFreeSpace(pg);
+        assert free == contiguous + 10 * 300;
+
+        PageX.compact(pg);
+        assert PageX.getFreeSpace(pg) == free;
+        assert PageX.getContiguousFreeSpace(pg) == free;
+        for(int i = 0; i < raws.length; i ++) {
+            int offset = PageX.getItemOffset(pg, i);
+            if(i % 2 == 0) {
+                assert offset == 0;
+            } else {
+                assert Arrays.equals(pg.getData(), offset, offset+300, raws[i], 0, 300);
+            }
+        }
+
+        // 回收的槽号不复用
+        assert PageX.insert(pg, RandomUtil.randomBytes(300)) == raws.length;
+    }
+
+    @Test
+    public void testLargePageOffsets() {
+        // 64KB的页中偏移超过32767，两字节按无符号数读出
+        Page pg = MockPage.newMockPage(2, PageX.initRaw(PageCache.MAX_PAGE_SIZE));
+        byte[] raw = RandomUtil.randomBytes(1000);
+        int slot = PageX.insert(pg, raw);
+        int offset = PageX.getItemOffset(pg, slot);
+        assert offset == 0xFFFF - 1000;
+        assert PageX.getItemLength(pg, slot) == 1000;
+        assert Arrays.equals(pg.getData(), offset, offset+1000, raw, 0, 1000);
+        assert PageX.getFreeSpace(pg) == PageX.maxFreeSpace(PageCache.MAX_PAGE_SIZE) - 1000 - 4;
+    }
+
+    @Test
+    public void testRecoverBySlot() {
+        Page pg = MockPage.newMockPage(2, new byte[PageCache.PAGE_SIZE]);
+        byte[] a = RandomUtil.randomBytes(100);
+        byte[] b = RandomUtil.randomBytes(200);
+        // 页面全为0时也能按槽重放，槽目录按需补齐
+        PageX.recoverInsert(pg, b, 1);
+        PageX.recoverInsert(pg, a, 0);
+        assert PageX.getSlotCount(pg) == 2;
+        int offset = PageX.getItemOffset(pg, 1);
+        assert Arrays.equals(pg.getData(), offset, offset+200, b, 0, 200);
+
+        // 重复重放不占用额外空间
+        int free = PageX.getFreeSpace(pg);
+        PageX.recoverInsert(pg, a, 0);
+        assert PageX.getFreeSpace(pg) == free;
+
+        // 已回收的槽不再放回
+        PageX.recoverFree(pg, 0);
+        PageX.recoverInsert(pg, a, 0);
+        assert PageX.getItemOffset(pg, 0) == 0;
+    }
+}
@@ -0,0 +1,41 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FrameArenaTest {
+    @Test
+    public void testFrameArena() {
+        FrameArena arena = new FrameArena(PageCache.PAGE_SIZE);
+        // 跨越多个slab，帧之间互不重叠
+        int n = 1000;
+        List<Integer> frames = new ArrayList<>();
+        Set<String> positions = new HashSet<>();
+        for(int i = 0; i < n; i ++) {
+            int frame = arena.allocate();
+            byte[] slab = arena.slab(frame);
+            int offset = arena.offset(frame);
+            assert offset % PageCache.PAGE_SIZE == 0;
+            assert offset + PageCache.PAGE_SIZE <= slab.length;
+            assert positions.add(System.identityHashCode(slab) + ":" + offset);
+            frames.add(frame);
+        }
+
+        // 归还的帧被复用，不再分配新的slab
+        Set<String> freed = new HashSet<>();
+        for(int i = 0; i < n; i += 2) {
+            int frame = frames.get(i);
+            arena.free(arena.slab(frame), arena.offset(frame));
+            freed.add(System.identityHashCode(arena.slab(frame)) + ":" + arena.offset(frame));
+        }
+        for(int i = 0; i < n; i += 2) {
+            int frame = arena.allocate();
+            assert freed.remove(System.identityHashCode(arena.slab(frame)) + ":" + arena.offset(frame));
+        }
+        assert freed.isEmpty();
+    }
+}
@@ -6,6 +6,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.MockPage;
 import top.guoziyang.mydb.backend.dm.page.Page;
 
@@ -44,6 +45,12 @@ public class MockPageCache implements PageCache {
     @Override
     public void release(Page page) {}
 
+    @Override
+    public void markDirty(Page pg) {}
+
+    @Override
+    public void prefetch(int pgno) {}
+
     @Override
     public void truncateByBgno(int maxPgno) {}
 
@@ -52,7 +59,28 @@ public class MockPageCache implements PageCache {
         return noPages.intValue();
     }
 
+    @Override
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
+    @Override
+    public boolean isShared(Page pg) {
+        return false;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return 0;
+    }
+
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public void flushDirtyPages() {}
+
+    @Override
+    public void setLogger(Logger lg) {}
     
 }
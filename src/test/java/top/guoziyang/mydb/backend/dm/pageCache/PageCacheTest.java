@@ -1,16 +1,20 @@
 package top.guoziyang.mydb.backend.dm.pageCache;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.Test;
 
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
@@ -35,7 +39,7 @@ public class PageCacheTest {
         pc = PageCache.open("/tmp/pcacher_simple_test0", PageCache.PAGE_SIZE * 50);
         for(int i = 1; i <= 100; i ++) {
             Page pg = pc.getPage(i);
-            assert pg.getData()[0] == (byte)i-1;
+            assert pg.getData()[pg.getOffset()] == (byte)i-1;
             pg.release();
         }
         pc.close();
@@ -43,6 +47,364 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testMappedPageCache() throws Exception {
+        PageCacheOptions opts = new PageCacheOptions();
+        opts.mode = PageCacheOptions.MODE_MMAP;
+        // 超过一个映射段，驱逐和跨段增长都会发生
+        int pages = 2100;
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 50, opts);
+        for(int i = 0 ; i < pages; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            int pgno = pc.newPage(tmp);
+            Page pg = pc.getPage(pgno);
+            pg.getData()[pg.getOffset()+1] = (byte)(i+1);
+            pg.setDirty(true);
+            pg.release();
+        }
+        pc.close();
+        // 关闭时截掉映射扩展出的尾部
+        assert new File("/tmp/pcacher_mmap_test.db").length() == (long)pages * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 50, opts);
+        assert pc.getPageNumber() == pages;
+        for(int i = 1; i <= pages; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[pg.getOffset()] == (byte)(i-1);
+            assert pg.getData()[pg.getOffset()+1] == (byte)i;
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("/tmp/pcacher_mmap_test.db").delete();
+    }
+
+    @Test
+    public void testCompressedPageCache() throws Exception {
+        PageCacheOptions opts = new PageCacheOptions();
+        opts.compress = true;
+        int pages = 300;
+        byte[] text = "repetitive string ".getBytes();
+        PageCache pc = PageCache.create("/tmp/pcacher_compress_test", PageCache.PAGE_SIZE * 50, opts);
+        for(int i = 0 ; i < pages; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            // 每10页放一个随机页，它们不压缩存放
+            if(i % 10 == 9) {
+                tmp = RandomUtil.randomBytes(PageCache.PAGE_SIZE);
+            } else {
+                for(int j = 0; j + text.length <= tmp.length; j += text.length) {
+                    System.arraycopy(text, 0, tmp, j, text.length);
+                }
+            }
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        // 反复改写，旧位置在刷盘后被复用
+        for(int k = 0; k < 3; k ++) {
+            for(int i = 1; i <= pages; i ++) {
+                Page pg = pc.getPage(i);
+                pg.getData()[pg.getOffset()+1] = (byte)(i+k);
+                pg.setDirty(true);
+                pg.release();
+            }
+        }
+        assert pc.getCompressionRatio() > 2;
+        pc.close();
+        assert new File("/tmp/pcacher_compress_test.db").length() < (long)pages * PageCache.PAGE_SIZE / 2;
+
+        // 打开时由.pmap识别压缩格式
+        pc = PageCache.open("/tmp/pcacher_compress_test", PageCache.PAGE_SIZE * 50);
+        assert pc.getPageNumber() == pages;
+        for(int i = 1; i <= pages; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[pg.getOffset()] == (byte)(i-1);
+            assert pg.getData()[pg.getOffset()+1] == (byte)(i+2);
+            if(i % 10 != 0) {
+                assert pg.getData()[pg.getOffset()+text.length] == text[0];
+            }
+            pg.release();
+        }
+        pc.truncateByBgno(100);
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_compress_test", PageCache.PAGE_SIZE * 50);
+        assert pc.getPageNumber() == 100;
+        assert pc.newPage(new byte[PageCache.PAGE_SIZE]) == 101;
+        pc.close();
+
+        assert new File("/tmp/pcacher_compress_test.db").delete();
+        assert new File("/tmp/pcacher_compress_test.pmap").delete();
+    }
+
+    @Test
+    public void testPageTier() throws Exception {
+        PageCacheOptions opts = new PageCacheOptions();
+        opts.tierSize = 1 << 20;
+        int pages = 200;
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_tier_test", PageCache.PAGE_SIZE * 20 + opts.tierSize, opts);
+        for(int i = 0 ; i < pages; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        // 第一遍从文件读，被驱逐的页进入压缩层，之后的几遍由压缩层提供
+        for(int k = 0; k < 3; k ++) {
+            for(int i = 1; i <= pages; i ++) {
+                Page pg = pc.getPage(i);
+                assert pg.getData()[pg.getOffset()] == (byte)(i-1);
+                assert pg.getData()[pg.getOffset()+1] == (byte)k;
+                pg.getData()[pg.getOffset()+1] = (byte)(k+1);
+                pg.setDirty(true);
+                pg.release();
+            }
+        }
+        assert pc.getTierHits() > pages;
+        assert pc.getTierMisses() >= pages;
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_tier_test", PageCache.PAGE_SIZE * 20);
+        for(int i = 1; i <= pages; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[pg.getOffset()+1] == (byte)3;
+            pg.release();
+        }
+        assert pc.getTierHits() == 0;
+        pc.close();
+
+        assert new File("/tmp/pcacher_tier_test.db").delete();
+    }
+
+    @Test
+    public void testPreExtend() throws Exception {
+        PageCacheOptions opts = new PageCacheOptions();
+        opts.extentSize = 1 << 20;
+        File f = new File("/tmp/pcacher_extend_test.db");
+        PageCache pc = PageCache.create("/tmp/pcacher_extend_test", PageCache.PAGE_SIZE * 50, opts);
+        for(int i = 0 ; i < 10; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        // 文件按extent扩展，而不是逐页增长
+        assert f.length() == opts.extentSize;
+        assert pc.getPageNumber() == 10;
+        for(int i = 0; i < 200; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        assert f.length() == 2 * opts.extentSize;
+        pc.close();
+        // 关闭时截掉未使用的部分
+        assert f.length() == 210L * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open("/tmp/pcacher_extend_test", PageCache.PAGE_SIZE * 50, opts);
+        assert pc.newPage(new byte[PageCache.PAGE_SIZE]) == 211;
+        pc.close();
+
+        assert f.delete();
+    }
+
+    @Test
+    public void testLogBeforePage() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_wal_test", PageCache.PAGE_SIZE * 10);
+        Logger lg = Logger.create("/tmp/pcacher_wal_test");
+        File log = new File("/tmp/pcacher_wal_test.log.0");
+        pc.setLogger(lg);
+        int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+
+        // 日志只追加在缓冲里，写回页面时才刷到页面的LSN
+        Page pg = pc.getPage(pgno);
+        pg.getData()[pg.getOffset()] = 1;
+        long lsn = lg.log(RandomUtil.randomBytes(100));
+        pg.setLsn(lsn);
+        pg.setLsn(lsn - 1);
+        assert pg.getLsn() == lsn;
+        pg.setDirty(true);
+        long later = lg.log(RandomUtil.randomBytes(100));
+        assert log.length() < lsn;
+        pc.flushPage(pg);
+        pg.release();
+        assert log.length() >= lsn;
+
+        // 被驱逐的脏页同样先刷日志
+        for(int i = 0; i < 30; i ++) {
+            pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+            pg = pc.getPage(pgno);
+            pg.getData()[pg.getOffset()] = 1;
+            pg.setLsn(lg.log(RandomUtil.randomBytes(100)));
+            pg.setDirty(true);
+            pg.release();
+        }
+        assert log.length() > later;
+        pc.close();
+        lg.close();
+
+        assert new File("/tmp/pcacher_wal_test.db").delete();
+        assert log.delete();
+        assert Logger.remove("/tmp/pcacher_wal_test");
+    }
+
+    @Test
+    public void testSkipPageInUpdate() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_update_test", PageCache.PAGE_SIZE * 10);
+        int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        Page pg = pc.getPage(pgno);
+
+        // 原地修改进行到一半时，写线程不写出这一页
+        pg.beginUpdate();
+        pg.setDirty(true);
+        pg.getData()[pg.getOffset()] = 1;
+        pc.writeDirtyPages();
+        assert readFirstByte("/tmp/pcacher_update_test.db", pgno) == 0;
+
+        // 修改完成后照常写出
+        pg.getData()[pg.getOffset()+1] = 1;
+        pg.endUpdate();
+        pc.writeDirtyPages();
+        assert readFirstByte("/tmp/pcacher_update_test.db", pgno) == 1;
+        pg.release();
+        pc.close();
+
+        assert new File("/tmp/pcacher_update_test.db").delete();
+    }
+
+    private int readFirstByte(String path, int pgno) throws Exception {
+        try(RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            raf.seek((long)(pgno-1) * PageCache.PAGE_SIZE);
+            return raf.read();
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        int pages = 200;
+        PageCache pc = PageCache.create("/tmp/pcacher_readahead_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 0 ; i < pages; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        PageCacheImpl pci = PageCache.open("/tmp/pcacher_readahead_test", PageCache.PAGE_SIZE * 50);
+        // 顺序读几页后，后面的页应被提前加载
+        for(int i = 1; i <= 8; i ++) {
+            Page pg = pci.getPage(i);
+            assert pg.getData()[pg.getOffset()] == (byte)(i-1);
+            pg.release();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!pci.isCached(10) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assert pci.isCached(10);
+        // 显式提示
+        pci.prefetch(150);
+        while(!pci.isCached(150) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assert pci.isCached(150);
+        // 预读与正常读交错，数据仍然正确
+        for(int i = 9; i <= pages; i ++) {
+            Page pg = pci.getPage(i);
+            assert pg.getData()[pg.getOffset()] == (byte)(i-1);
+            pg.release();
+        }
+        pci.close();
+
+        assert new File("/tmp/pcacher_readahead_test.db").delete();
+    }
+
+    @Test
+    public void testReadAheadDuringNewPage() throws Exception {
+        // 新建页面的同时不停预读最新的页、顺序扫描已建好的页，预读不会把还没写入的全零页装进缓存
+        // 缓存放得下所有页，装进去的旧页面不会被驱逐掉，之后读到的必须是写入的数据
+        int pages = 1000, creators = 4;
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_newpage_test", PageCache.PAGE_SIZE * (pages + 100));
+        ConcurrentHashMap<Integer, byte[]> inits = new ConcurrentHashMap<>();
+        AtomicInteger created = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(creators);
+        for(int t = 0; t < creators; t ++) {
+            new Thread(() -> {
+                for(int i = 0; i < pages / creators; i ++) {
+                    byte[] init = RandomUtil.randomBytes(PageCache.PAGE_SIZE);
+                    inits.put(pc.newPage(init), init);
+                    created.incrementAndGet();
+                }
+                done.countDown();
+            }).start();
+        }
+        Thread prefetcher = new Thread(() -> {
+            while(done.getCount() > 0) {
+                pc.prefetch(pc.getPageNumber());
+            }
+        });
+        Thread scanner = new Thread(() -> {
+            try {
+                int next = 1;
+                while(done.getCount() > 0) {
+                    if(inits.containsKey(next)) {
+                        pc.getPage(next).release();
+                        next ++;
+                    }
+                }
+            } catch(Exception e) {
+                Panic.panic(e);
+            }
+        });
+        prefetcher.start();
+        scanner.start();
+        done.await();
+        prefetcher.join();
+        scanner.join();
+
+        assert created.get() == pages;
+        for(int pgno = 1; pgno <= pages; pgno ++) {
+            Page pg = pc.getPage(pgno);
+            assert Arrays.equals(pg.getData(), pg.getOffset(), pg.getOffset() + PageCache.PAGE_SIZE, inits.get(pgno), 0, PageCache.PAGE_SIZE);
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("/tmp/pcacher_newpage_test.db").delete();
+    }
+
+    @Test
+    public void testReadAheadInterleaved() throws Exception {
+        int pages = 200;
+        PageCache pc = PageCache.create("/tmp/pcacher_interleave_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 0 ; i < pages; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.close();
+
+        // 两个线程每一步都交错着顺序扫描各自的范围，各自都应触发预读
+        PageCacheImpl pci = PageCache.open("/tmp/pcacher_interleave_test", PageCache.PAGE_SIZE * 50);
+        CyclicBarrier step = new CyclicBarrier(2);
+        CountDownLatch done = new CountDownLatch(2);
+        for(int start : new int[]{1, 101}) {
+            new Thread(() -> {
+                try {
+                    for(int i = start; i < start + 8; i ++) {
+                        step.await();
+                        pci.getPage(i).release();
+                    }
+                } catch(Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!(pci.isCached(10) && pci.isCached(110)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assert pci.isCached(10);
+        assert pci.isCached(110);
+        pci.close();
+
+        assert new File("/tmp/pcacher_interleave_test.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
@@ -145,7 +507,7 @@ public class PageCacheTest {
                     Panic.panic(e);
                 }
                 pg.lock();
-                assert Arrays.equals(mpg.getData(), pg.getData());
+                assert Arrays.equals(mpg.getData(), 0, PageCache.PAGE_SIZE, pg.getData(), pg.getOffset(), pg.getOffset()+PageCache.PAGE_SIZE);
                 pg.unlock();
                 pg.release();
             } else {
@@ -173,7 +535,7 @@ public class PageCacheTest {
                 }
                 pg.setDirty(true);
                 for(int j = 0; j < PageCache.PAGE_SIZE; j ++) {
-                    pg.getData()[j] = newData[j];
+                    pg.getData()[pg.getOffset()+j] = newData[j];
                 }
                 pg.unlock();
                 pg.release();
@@ -0,0 +1,42 @@
+package top.guoziyang.mydb.backend.dm.pageIndex;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+
+public class FreeSpaceMapTest {
+    @Test
+    public void testWriteAndOpen() throws Exception {
+        FreeSpaceMap fsm = FreeSpaceMap.create("/tmp/TestFSM", PageCache.PAGE_SIZE);
+        assert !fsm.isValid();
+        for(int i = 2; i <= 100; i ++) {
+            fsm.set(i, i * 70);
+        }
+        fsm.write(1234);
+
+        fsm = FreeSpaceMap.open("/tmp/TestFSM", PageCache.PAGE_SIZE);
+        assert fsm.isValid();
+        assert fsm.getLogPosition() == 1234;
+        assert fsm.getPageCount() == 100;
+        for(int i = 2; i <= 100; i ++) {
+            // 只会低估，误差小于一个单位
+            assert fsm.get(i) <= i * 70;
+            assert fsm.get(i) > i * 70 - PageCache.PAGE_SIZE / 255 - 1;
+        }
+
+        // 页大小不符或内容损坏时不可用
+        assert !FreeSpaceMap.open("/tmp/TestFSM", PageCache.PAGE_SIZE * 2).isValid();
+        try(RandomAccessFile raf = new RandomAccessFile("/tmp/TestFSM.fsm", "rw")) {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b + 1);
+        }
+        assert !FreeSpaceMap.open("/tmp/TestFSM", PageCache.PAGE_SIZE).isValid();
+
+        new File("/tmp/TestFSM.fsm").delete();
+    }
+}
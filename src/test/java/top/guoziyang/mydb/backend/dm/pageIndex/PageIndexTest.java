@@ -1,5 +1,8 @@
 package top.guoziyang.mydb.backend.dm.pageIndex;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
@@ -7,7 +10,7 @@ import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 public class PageIndexTest {
     @Test
     public void testPageIndex() {
-        PageIndex pIndex = new PageIndex();
+        PageIndex pIndex = new PageIndex(PageCache.PAGE_SIZE);
         int threshold = PageCache.PAGE_SIZE / 20;
         for(int i = 0; i < 20; i ++) {
             pIndex.add(i, i*threshold);
@@ -23,4 +26,48 @@ public class PageIndexTest {
             }
         }
     }
+
+    @Test
+    public void testUpdate() {
+        // 重新登记到更高的桶后，更大的请求能选到它，原来的登记作废
+        PageIndex pIndex = new PageIndex(PageCache.PAGE_SIZE);
+        int threshold = PageCache.PAGE_SIZE / 40;
+        pIndex.add(1, 2*threshold);
+        pIndex.add(2, 2*threshold);
+        pIndex.update(1, 20*threshold);
+        assert pIndex.select(10*threshold).pgno == 1;
+        assert pIndex.select(threshold).pgno == 2;
+        assert pIndex.select(threshold) == null;
+    }
+
+    @Test
+    public void testConcurrentSelectAdd() throws Exception {
+        // 多线程反复取出放回，每页同时只被一个线程持有，最后一页不少
+        int pages = 64, threads = 16;
+        PageIndex pIndex = new PageIndex(PageCache.PAGE_SIZE);
+        for(int i = 1; i <= pages; i ++) {
+            pIndex.add(i, PageCache.PAGE_SIZE / 2);
+        }
+        AtomicIntegerArray owners = new AtomicIntegerArray(pages+1);
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                try {
+                    for(int k = 0; k < 20000; k ++) {
+                        PageInfo pi = pIndex.select(100);
+                        if(pi == null) continue;
+                        assert owners.incrementAndGet(pi.pgno) == 1;
+                        owners.decrementAndGet(pi.pgno);
+                        pIndex.add(pi.pgno, pi.freeSpace);
+                    }
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        int count = 0;
+        while(pIndex.select(100) != null) count ++;
+        assert count == pages;
+    }
 }
@@ -6,6 +6,7 @@ import java.util.List;
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -31,6 +32,7 @@ public class BPlusTreeTest {
         }
 
         assert new File("/tmp/TestTreeSingle.db").delete();
-        assert new File("/tmp/TestTreeSingle.log").delete();
+        assert Logger.remove("/tmp/TestTreeSingle");
+        new File("/tmp/TestTreeSingle.fsm").delete();
     }
 }
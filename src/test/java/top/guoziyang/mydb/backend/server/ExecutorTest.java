@@ -6,6 +6,9 @@ import java.util.concurrent.CountDownLatch;
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheOptions;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.vm.VersionManager;
@@ -40,8 +43,88 @@ public class ExecutorTest {
         testInsert(exe, 10000, 1);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        Logger.remove(path);
         new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testOverflowString() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table big_table id int32, name string, body string (index id name)".getBytes());
+
+        // 超过页大小的值存到溢出页，更新其他字段时沿用原来的溢出数据
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 3000; i ++) {
+            sb.append("abcdefghij");
+        }
+        String body = sb.toString();
+        exe.execute(("insert into big_table values 1 alice " + body).getBytes());
+        exe.execute(("insert into big_table values 2 " + body + " bob").getBytes());
+        exe.execute("update big_table set id = 3 where id = 1".getBytes());
+        String res = new String(exe.execute("select * from big_table where id = 3".getBytes()));
+        assert res.contains("[3, alice, " + body + "]");
+        res = new String(exe.execute(("select * from big_table where name = " + body).getBytes()));
+        assert res.contains("[2, " + body + ", bob]");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testOverflowReclaimed() throws Exception {
+        // 每次只扩展一页，文件长度就是页数
+        PageCacheOptions opts = new PageCacheOptions();
+        opts.extentSize = PageCache.PAGE_SIZE;
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm, opts);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table big_table id int32, body string (index id)".getBytes());
+
+        String body = "";
+        for(int i = 0; i < 30; i ++) {
+            body = bigString((char)('a' + i % 26));
+            if(i == 0) {
+                exe.execute(("insert into big_table values 1 " + body).getBytes());
+            }
+            File db = new File(path + ".db");
+            long pages = db.length() / PageCache.PAGE_SIZE;
+            // 更新掉的值、回滚的插入、删除的行，溢出数据都会回收，页数不随次数增长
+            exe.execute(("update big_table set body = " + body + " where id = 1").getBytes());
+            exe.execute("begin".getBytes());
+            exe.execute(("insert into big_table values 2 " + body).getBytes());
+            exe.execute("abort".getBytes());
+            exe.execute(("insert into big_table values 3 " + body).getBytes());
+            exe.execute("delete from big_table where id = 3".getBytes());
+            if(i >= 10) {
+                assert db.length() / PageCache.PAGE_SIZE <= pages + 1;
+            }
+        }
+        String res = new String(exe.execute("select * from big_table where id = 1".getBytes()));
+        assert res.contains("[1, " + body + "]");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    private String bigString(char c) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 30000; i ++) {
+            sb.append(c);
+        }
+        return sb.toString();
     }
 
     private void testMultiInsert(int total, int noWorkers) throws Exception {
@@ -72,7 +155,8 @@ public class ExecutorTest {
         testMultiInsert(10000, 4);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        Logger.remove(path);
         new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
     }
 }
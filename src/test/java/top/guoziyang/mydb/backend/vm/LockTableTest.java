@@ -2,7 +2,7 @@ package top.guoziyang.mydb.backend.vm;
 
 import static org.junit.Assert.assertThrows;
 
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.Condition;
 
 import org.junit.Test;
 
@@ -39,14 +39,8 @@ public class LockTableTest {
         LockTable lt = new LockTable();
         for(long i = 1; i <= 100; i ++) {
             try {
-                Lock o = lt.add(i, i);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                Condition o = lt.add(i, i);
+                assert o == null;
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -54,14 +48,8 @@ public class LockTableTest {
 
         for(long i = 1; i <= 99; i ++) {
             try {
-                Lock o = lt.add(i, i+1);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                Condition o = lt.add(i, i+1);
+                assert o != null;
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -0,0 +1,102 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.RandomUtil;
+
+public class VersionManagerTest {
+
+    private static final String PATH = "/tmp/TestVMReclaim";
+
+    @Test
+    public void testReclaimSuperseded() throws Exception {
+        TransactionManager tm = TransactionManager.create(PATH);
+        DataManager dm = DataManager.create(PATH, PageCache.PAGE_SIZE*20, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        int n = 100;
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        long xid = vm.begin(0);
+        for(int i = 0; i < n; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(vm.insert(xid, data));
+            datas.add(data);
+        }
+        vm.commit(xid);
+        long pages = maxPage(uids);
+
+        // 可重复读事务开始后提交的更新，旧版本在它结束前都不能回收
+        long reader = vm.begin(1);
+        List<Long> old = uids;
+        List<byte[]> oldDatas = new ArrayList<>(datas);
+        uids = update(vm, uids, datas);
+        for(int i = 0; i < n; i ++) {
+            assert Arrays.equals(vm.read(reader, old.get(i)), oldDatas.get(i));
+            assert vm.read(0, old.get(i)) == null;
+        }
+
+        // 回滚的删除不影响被删的版本
+        xid = vm.begin(0);
+        for(long uid : uids) {
+            assert vm.delete(xid, uid);
+        }
+        vm.abort(xid);
+        for(long uid : uids) {
+            assert vm.read(0, uid) != null;
+        }
+
+        vm.commit(reader);
+        for(long uid : old) {
+            assert dm.read(uid) == null;
+        }
+
+        // 反复更新，旧版本的空间被之后的插入用上，页数不随更新次数增长
+        for(int round = 0; round < 50; round ++) {
+            uids = update(vm, uids, datas);
+            pages = Math.max(pages, maxPage(uids));
+        }
+        assert pages <= 3 * maxPage(old);
+        for(int i = 0; i < n; i ++) {
+            assert Arrays.equals(vm.read(0, uids.get(i)), datas.get(i));
+        }
+
+        dm.close();
+        tm.close();
+        new File(PATH + ".db").delete();
+        new File(PATH + ".xid").delete();
+        new File(PATH + ".fsm").delete();
+        Logger.remove(PATH);
+    }
+
+    // 在一个事务里把每条记录删掉再插入新版本，和表的更新一样
+    private List<Long> update(VersionManager vm, List<Long> uids, List<byte[]> datas) throws Exception {
+        long xid = vm.begin(0);
+        List<Long> next = new ArrayList<>();
+        for(int i = 0; i < uids.size(); i ++) {
+            assert vm.delete(xid, uids.get(i));
+            byte[] data = RandomUtil.randomBytes(1000);
+            next.add(vm.insert(xid, data));
+            datas.set(i, data);
+        }
+        vm.commit(xid);
+        return next;
+    }
+
+    private long maxPage(List<Long> uids) {
+        long max = 0;
+        for(long uid : uids) {
+            max = Math.max(max, uid >>> 32);
+        }
+        return max;
+    }
+}
@@ -10,11 +10,12 @@ import top.guoziyang.mydb.backend.utils.Panic;
 public class PackagerTest {
     @Test
     public void testPackager() throws Exception {
+        // 先绑定端口再启动服务端线程，避免客户端连接时服务端尚未监听
+        ServerSocket ss = new ServerSocket(10345);
         new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    ServerSocket ss = new ServerSocket(10345);
                     Socket socket = ss.accept();
                     Transporter t = new Transporter(socket);
                     Encoder e = new Encoder();